@@ -0,0 +1,201 @@
+/*
+ * This code and all components (c) Copyright 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the BSD 3-Clause License.
+ */
+package com.mycompany.wms.example.pushpublish.protocol.cupertino;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public class GroupPlaylistCoordinator
+{
+
+	/*
+	 * Shared by the members of an adaptive group so the group master playlist is written once per change, not once per member.
+	 *
+	 * Every member still renders the group master playlist when the base class asks it to, and hands the result to publish() with
+	 * the destination it goes to (the primary and backup group masters are separate destinations):
+	 *  - if it is the same as what was last written there, nothing is written.
+	 *  - otherwise it is written debounce milliseconds after the first change that isn't written yet, by whichever member published
+	 *    last, so the burst of calls when all renditions start together becomes a single write of the final playlist. The window
+	 *    isn't restarted by further changes, so a group that keeps changing is still written at least every debounce milliseconds.
+	 *    With a debounce of 0 it is written right away.
+	 * publish() has already told the base class the playlist was sent when a deferred write happens, and the base class only sends the
+	 * group master playlist again when the group changes, so a failed deferred write is retried (RETRY_DELAY, doubling up to
+	 * MAX_RETRY_DELAY) until it succeeds, a newer playlist replaces it, or it failed MAX_ATTEMPTS times. Then it is dropped, along with
+	 * the member that would have written it. If a write fails, the next publish() writes again even if the content didn't change.
+	 */
+
+	public static final long DEFAULT_DEBOUNCE = 500;
+
+	private static final long RETRY_DELAY = 1000;
+	private static final long MAX_RETRY_DELAY = 30000;
+	private static final int MAX_ATTEMPTS = 10;
+
+	public interface IGroupPlaylistWriter
+	{
+		/*
+		 * Writes bytes to the destination, returning the number of bytes written or 0 if it failed.
+		 */
+		int writeGroupPlaylist(byte[] bytes);
+	}
+
+	private static final Map<String, Destination> destinations = new HashMap<String, Destination>();
+	private static ScheduledExecutorService executor = null;
+
+	private static class Destination implements Runnable
+	{
+		final Object writeLock = new Object();
+		byte[] written = null;
+		byte[] pending = null;
+		IGroupPlaylistWriter writer = null;
+		boolean scheduled = false;
+		long retryDelay = 0;
+		int attempts = 0;
+		long writeCount = 0;
+
+		@Override
+		public void run()
+		{
+			byte[] bytes;
+			IGroupPlaylistWriter pendingWriter;
+			synchronized (this)
+			{
+				scheduled = false;
+				bytes = pending;
+				pendingWriter = writer;
+				pending = null;
+				writer = null;
+			}
+			if (bytes == null)
+				return;
+
+			boolean written = write(bytes, pendingWriter) > 0;
+			synchronized (this)
+			{
+				if (written)
+				{
+					retryDelay = 0;
+					attempts = 0;
+					return;
+				}
+
+				// a newer playlist published in the meantime goes instead of this one, with attempts of its own.
+				if (pending != null)
+					attempts = 0;
+				else if (++attempts >= MAX_ATTEMPTS)
+				{
+					// give up until the group changes again, and don't keep the member alive for it.
+					retryDelay = 0;
+					attempts = 0;
+					return;
+				}
+				else
+				{
+					pending = bytes;
+					writer = pendingWriter;
+				}
+				retryDelay = retryDelay == 0 ? RETRY_DELAY : Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+				if (!scheduled)
+				{
+					scheduled = true;
+					getExecutor().schedule(this, retryDelay, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+
+		// writes are serialized per destination, so a slow write can't be overtaken by an older playlist. They don't hold the
+		// Destination lock, members queuing the next playlist don't wait for them.
+		int write(byte[] bytes, IGroupPlaylistWriter writer)
+		{
+			synchronized (writeLock)
+			{
+				if (Arrays.equals(bytes, written))
+					return bytes.length;
+				int retVal = writer.writeGroupPlaylist(bytes);
+				written = retVal > 0 ? bytes : null;
+				if (retVal > 0)
+					writeCount++;
+				return retVal;
+			}
+		}
+	}
+
+	/*
+	 * key identifies the destination, e.g. the file path or URL of the group master playlist. Returns the number of bytes written,
+	 * or to be written, or 0 if writing right away failed.
+	 */
+	public static int publish(String key, byte[] bytes, long debounce, IGroupPlaylistWriter writer)
+	{
+		Destination destination = getDestination(key);
+		if (debounce <= 0)
+			return destination.write(bytes, writer);
+
+		synchronized (destination)
+		{
+			destination.pending = bytes;
+			destination.writer = writer;
+			if (!destination.scheduled)
+			{
+				destination.scheduled = true;
+				getExecutor().schedule(destination, debounce, TimeUnit.MILLISECONDS);
+			}
+		}
+		return bytes.length;
+	}
+
+	/*
+	 * Number of times the group master playlist was actually written to key.
+	 */
+	public static long getWriteCount(String key)
+	{
+		Destination destination;
+		synchronized (destinations)
+		{
+			destination = destinations.get(key);
+		}
+		if (destination == null)
+			return 0;
+		synchronized (destination.writeLock)
+		{
+			return destination.writeCount;
+		}
+	}
+
+	private static Destination getDestination(String key)
+	{
+		synchronized (destinations)
+		{
+			Destination destination = destinations.get(key);
+			if (destination == null)
+			{
+				destination = new Destination();
+				destinations.put(key, destination);
+			}
+			return destination;
+		}
+	}
+
+	private static synchronized ScheduledExecutorService getExecutor()
+	{
+		if (executor == null)
+		{
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "PushPublishGroupPlaylist");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * This code and all components (c) Copyright 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the BSD 3-Clause License.
+ */
+package com.mycompany.wms.example.pushpublish.protocol.cupertino;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+public class LiveEdgeCatchUp
+{
+
+	/*
+	 * Catch-up policy for handlers that fall behind the live edge ("http.catchUp":"true").
+	 *
+	 * The base class hands us media segments in order, as fast as we send them. While we keep up, each segment arrives roughly one
+	 * segment duration after the previous one and the push thread sits idle in between. When sending takes longer than the
+	 * media it carries, segments queue up and the time we are behind live grows by (time spent on the previous segment - its duration).
+	 *
+	 * Once that backlog exceeds maxLatency segment durations, segments are skipped (not sent) until it is back under resumeLatency.
+	 * Skipping costs no time, so every skipped segment takes its whole duration off the backlog. Skipped segments stay in the
+	 * playlist so media sequence numbers don't change, but are marked with EXT-X-GAP so players don't request them. EXT-X-GAP needs
+	 * protocol version 8, so EXT-X-VERSION is raised to 8 in playlists that have one (the base class renders version 3).
+	 */
+
+	public static final double DEFAULT_MAX_LATENCY = 3.0;  // segment durations
+	public static final double DEFAULT_RESUME_LATENCY = 1.0;  // segment durations
+	public static final int GAP_VERSION = 8;  // EXT-X-GAP needs protocol version 8
+
+	private static final int MAX_SKIPPED = 1000;
+	private static final String TAG_GAP = "#EXT-X-GAP";
+	private static final String TAG_EXTINF = "#EXTINF";
+	private static final String TAG_VERSION = "#EXT-X-VERSION:";
+
+	private final double maxLatency;
+	private final double resumeLatency;
+
+	private final LinkedHashSet<String> skipped = new LinkedHashSet<String>();
+	private long behind = 0;
+	private long lastArrival = -1;
+	private long lastDuration = 0;
+	private long lastSent = -1;
+	private boolean skipping = false;
+	private long skipCount = 0;
+
+	public LiveEdgeCatchUp(double maxLatency, double resumeLatency)
+	{
+		this.maxLatency = maxLatency;
+		this.resumeLatency = Math.min(resumeLatency, maxLatency);
+	}
+
+	/*
+	 * Called when the base class asks us to send a media segment, returns true if it should be skipped.
+	 */
+	public synchronized boolean skipMediaSegment(String uri, long duration)
+	{
+		long now = System.currentTimeMillis();
+		if (lastSent >= 0 && now - lastSent > duration / 2)
+			behind = 0;  // we were waiting for this segment, so we are at the live edge.
+		else if (lastArrival >= 0)
+			behind = Math.max(0, behind + (now - lastArrival) - lastDuration);
+
+		lastArrival = now;
+		lastDuration = duration;
+
+		if (!skipping && behind > maxLatency * duration)
+			skipping = true;
+		else if (skipping && behind <= resumeLatency * duration)
+			skipping = false;
+
+		if (!skipping)
+			return false;
+
+		skipped.add(uri);
+		if (skipped.size() > MAX_SKIPPED)
+		{
+			Iterator<String> itr = skipped.iterator();
+			itr.next();
+			itr.remove();
+		}
+		skipCount++;
+		return true;
+	}
+
+	/*
+	 * Called when a media segment that was not skipped has been sent.
+	 */
+	public synchronized void mediaSegmentSent()
+	{
+		lastSent = System.currentTimeMillis();
+	}
+
+	/*
+	 * Called when a media segment drops out of the playlist, returns true if it was skipped (and so was never sent).
+	 */
+	public synchronized boolean removeMediaSegment(String uri)
+	{
+		return skipped.remove(uri);
+	}
+
+	public synchronized boolean isSkipping()
+	{
+		return skipping;
+	}
+
+	public synchronized long getBehind()
+	{
+		return behind;
+	}
+
+	public synchronized long getSkipCount()
+	{
+		return skipCount;
+	}
+
+	/*
+	 * Marks skipped media segments in a rendered media playlist with EXT-X-GAP, and raises EXT-X-VERSION to 8 if it did.
+	 */
+	public synchronized String decoratePlaylist(String playlist)
+	{
+		if (skipped.isEmpty())
+			return playlist;
+
+		String[] lines = playlist.split("\n", -1);
+		StringBuilder out = new StringBuilder(playlist.length() + 64);
+		int segmentStart = -1;
+		int versionStart = -1;
+		int versionEnd = -1;
+		int headerEnd = -1;
+		boolean gap = false;
+		for (int i = 0; i < lines.length; i++)
+		{
+			String line = lines[i];
+			String trimmed = line.trim();
+			if (trimmed.startsWith(TAG_VERSION))
+			{
+				versionStart = out.length();
+				versionEnd = versionStart + line.length();
+			}
+			else if (trimmed.startsWith(TAG_EXTINF))
+				segmentStart = out.length();
+			else if (trimmed.length() > 0 && !trimmed.startsWith("#"))
+			{
+				if (segmentStart >= 0 && skipped.contains(trimmed))
+				{
+					out.insert(segmentStart, TAG_GAP + "\n");
+					gap = true;
+				}
+				segmentStart = -1;
+			}
+
+			out.append(line);
+			if (i < lines.length - 1)
+				out.append('\n');
+			if (i == 0 && trimmed.startsWith("#EXTM3U"))
+				headerEnd = out.length();
+		}
+
+		// the version tag comes before any media segment, so inserting gaps didn't move it.
+		if (gap)
+		{
+			if (versionStart >= 0)
+			{
+				if (getVersion(out.substring(versionStart, versionEnd)) < GAP_VERSION)
+					out.replace(versionStart, versionEnd, TAG_VERSION + GAP_VERSION);
+			}
+			else if (headerEnd >= 0)
+				out.insert(headerEnd, TAG_VERSION + GAP_VERSION + "\n");
+		}
+		return out.toString();
+	}
+
+	private static int getVersion(String line)
+	{
+		try
+		{
+			return Integer.parseInt(line.trim().substring(TAG_VERSION.length()).trim());
+		}
+		catch (NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+}
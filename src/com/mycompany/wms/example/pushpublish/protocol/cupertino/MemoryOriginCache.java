@@ -0,0 +1,249 @@
+/*
+ * This code and all components (c) Copyright 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the BSD 3-Clause License.
+ */
+package com.mycompany.wms.example.pushpublish.protocol.cupertino;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class MemoryOriginCache
+{
+
+	/*
+	 * Bounded in-memory store for the live window of playlists and media segments.
+	 *
+	 * Entries are keyed by their path relative to the origin root (<path>/<dstStreamName>/chunklist.m3u8,
+	 * <path>/<dstStreamName>/<sessionId>/media_x.ts) and belong to a directory (<path>/<dstStreamName>), which one map entry claims
+	 * (claim()) so two entries can't overwrite each other's playlists.
+	 *
+	 * Media segments are removed as soon as they drop out of the live window (see remove()). If the cache grows beyond maxBytes anyway
+	 * (many streams sharing one origin), the least recently used media segments are evicted. Playlists and encryption keys are not
+	 * evicted, playback breaks without them, but they count towards maxBytes and only live as long as their directory has media
+	 * segments: once the last one is removed or evicted, the whole directory goes, and with it any group master playlist
+	 * (addGroupMember()) that has no other member directory left.
+	 */
+
+	public static class Entry
+	{
+		final String key;
+		final String dir;
+		final byte[] data;
+		final String contentType;
+		final boolean playlist;
+		final boolean pinned;
+
+		Entry(String key, String dir, byte[] data, String contentType, boolean playlist, boolean pinned)
+		{
+			this.key = key;
+			this.dir = dir;
+			this.data = data;
+			this.contentType = contentType;
+			this.playlist = playlist;
+			this.pinned = pinned;
+		}
+
+		public byte[] getData()
+		{
+			return data;
+		}
+
+		public String getContentType()
+		{
+			return contentType;
+		}
+
+		public boolean isPlaylist()
+		{
+			return playlist;
+		}
+	}
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);  // access order for LRU
+	private final long maxBytes;
+	private long size = 0;
+	private long evictions = 0;
+
+	private final Map<String, Set<String>> dirKeys = new HashMap<String, Set<String>>();
+	private final Map<String, Integer> dirSegments = new HashMap<String, Integer>();
+	private final Map<String, Set<String>> groupMembers = new HashMap<String, Set<String>>();
+	private final Map<String, String> owners = new HashMap<String, String>();
+
+	public MemoryOriginCache(long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	/*
+	 * Claims dir for owner. Returns false if another owner has it, until that owner's directory is gone.
+	 */
+	public synchronized boolean claim(String dir, String owner)
+	{
+		String current = owners.get(dir);
+		if (current != null && !current.equals(owner))
+			return false;
+		owners.put(dir, owner);
+		return true;
+	}
+
+	public synchronized void putPlaylist(String dir, String key, byte[] data)
+	{
+		put(new Entry(key, dir, data, "application/vnd.apple.mpegurl", true, true));
+	}
+
+	public synchronized void putMediaSegment(String dir, String key, byte[] data)
+	{
+		put(new Entry(key, dir, data, getContentType(key), false, false));
+	}
+
+	public synchronized void putKey(String dir, String key, byte[] data)
+	{
+		put(new Entry(key, dir, data, "application/octet-stream", false, true));
+	}
+
+	/*
+	 * The group master playlist in groupDir is kept while memberDir (or another member) is.
+	 */
+	public synchronized void addGroupMember(String groupDir, String memberDir)
+	{
+		Set<String> members = groupMembers.get(groupDir);
+		if (members == null)
+		{
+			members = new HashSet<String>();
+			groupMembers.put(groupDir, members);
+		}
+		members.add(memberDir);
+	}
+
+	public synchronized Entry get(String key)
+	{
+		return entries.get(key);
+	}
+
+	public synchronized boolean remove(String key)
+	{
+		Entry entry = entries.remove(key);
+		if (entry == null)
+			return false;
+		size -= entry.data.length;
+		detach(entry);
+		return true;
+	}
+
+	public synchronized long getSize()
+	{
+		return size;
+	}
+
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	private void put(Entry entry)
+	{
+		Entry old = entries.put(entry.key, entry);
+		if (old != null)
+		{
+			size -= old.data.length;
+			detach(old);
+		}
+		size += entry.data.length;
+		attach(entry);
+
+		if (size <= maxBytes)
+			return;
+
+		List<Entry> evicted = new ArrayList<Entry>();
+		Iterator<Map.Entry<String, Entry>> itr = entries.entrySet().iterator();
+		while (itr.hasNext() && size > maxBytes)
+		{
+			Map.Entry<String, Entry> eldest = itr.next();
+			Entry value = eldest.getValue();
+			if (value.pinned || value == entry)
+				continue;
+			itr.remove();
+			size -= value.data.length;
+			evictions++;
+			evicted.add(value);
+		}
+		for (Entry value : evicted)
+			detach(value);
+	}
+
+	private void attach(Entry entry)
+	{
+		Set<String> keys = dirKeys.get(entry.dir);
+		if (keys == null)
+		{
+			keys = new HashSet<String>();
+			dirKeys.put(entry.dir, keys);
+		}
+		keys.add(entry.key);
+		if (!entry.pinned)
+		{
+			Integer count = dirSegments.get(entry.dir);
+			dirSegments.put(entry.dir, count == null ? 1 : count + 1);
+		}
+	}
+
+	private void detach(Entry entry)
+	{
+		Set<String> keys = dirKeys.get(entry.dir);
+		if (keys != null)
+			keys.remove(entry.key);
+		if (entry.pinned)
+			return;
+
+		Integer count = dirSegments.get(entry.dir);
+		if (count == null || count <= 1)
+			removeDirectory(entry.dir);  // the last media segment is gone, nothing left to play.
+		else
+			dirSegments.put(entry.dir, count - 1);
+	}
+
+	private void removeDirectory(String dir)
+	{
+		Set<String> keys = dirKeys.remove(dir);
+		if (keys != null)
+		{
+			for (String key : keys)
+			{
+				Entry entry = entries.remove(key);
+				if (entry != null)
+					size -= entry.data.length;
+			}
+		}
+		dirSegments.remove(dir);
+		owners.remove(dir);
+
+		List<String> emptyGroups = new ArrayList<String>();
+		for (Map.Entry<String, Set<String>> group : groupMembers.entrySet())
+		{
+			if (group.getValue().remove(dir) && group.getValue().isEmpty())
+				emptyGroups.add(group.getKey());
+		}
+		for (String groupDir : emptyGroups)
+		{
+			groupMembers.remove(groupDir);
+			removeDirectory(groupDir);
+		}
+	}
+
+	private static String getContentType(String key)
+	{
+		if (key.endsWith(".ts"))
+			return "video/MP2T";
+		if (key.endsWith(".aac"))
+			return "audio/aac";
+		if (key.endsWith(".mp4") || key.endsWith(".m4s"))
+			return "video/mp4";
+		return "application/octet-stream";
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * This code and all components (c) Copyright 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the BSD 3-Clause License.
+ */
+package com.mycompany.wms.example.pushpublish.protocol.cupertino;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class MemoryOriginServer implements HttpHandler
+{
+
+	/*
+	 * Lightweight embedded HTTP origin that serves a MemoryOriginCache to players and edges.
+	 *
+	 * One server (and one cache) is shared by all handler instances configured with the same port, so the request path is
+	 * the cache key: http://<wowza-host>:<port>/<dstStreamName>/chunklist.m3u8
+	 *
+	 * Playlists are served with a short max-age so players and edges pick up new segments, media segments never change once written
+	 * (they live under a per-session directory) so they can be cached for much longer.
+	 */
+
+	private static final int HTTP_OK = 200;
+	private static final int HTTP_NOT_FOUND = 404;
+	private static final int HTTP_BAD_METHOD = 405;
+
+	private static final Map<Integer, MemoryOriginServer> servers = new HashMap<Integer, MemoryOriginServer>();
+
+	private final MemoryOriginCache cache;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final long maxBytes;
+	private final int threads;
+	private final int playlistMaxAge;
+	private final int mediaSegmentMaxAge;
+
+	private MemoryOriginServer(int port, long maxBytes, int threads, int playlistMaxAge, int mediaSegmentMaxAge) throws IOException
+	{
+		this.maxBytes = maxBytes;
+		this.threads = threads;
+		this.playlistMaxAge = playlistMaxAge;
+		this.mediaSegmentMaxAge = mediaSegmentMaxAge;
+		this.cache = new MemoryOriginCache(maxBytes);
+		this.server = HttpServer.create(new InetSocketAddress(port), 0);
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "PushPublishMemoryOrigin-" + port);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.server.createContext("/", this);
+		this.server.setExecutor(executor);
+		this.server.start();
+	}
+
+	/*
+	 * Returns the origin bound to port, starting it on first use. All settings are taken from the first caller, later callers can
+	 * compare theirs with the getters.
+	 */
+	public static synchronized MemoryOriginServer getInstance(int port, long maxBytes, int threads, int playlistMaxAge, int mediaSegmentMaxAge) throws IOException
+	{
+		MemoryOriginServer server = servers.get(port);
+		if (server == null)
+		{
+			server = new MemoryOriginServer(port, maxBytes, threads, playlistMaxAge, mediaSegmentMaxAge);
+			servers.put(port, server);
+		}
+		return server;
+	}
+
+	public MemoryOriginCache getCache()
+	{
+		return cache;
+	}
+
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	public int getThreads()
+	{
+		return threads;
+	}
+
+	public int getPlaylistMaxAge()
+	{
+		return playlistMaxAge;
+	}
+
+	public int getMediaSegmentMaxAge()
+	{
+		return mediaSegmentMaxAge;
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException
+	{
+		try
+		{
+			String method = exchange.getRequestMethod();
+			boolean head = "HEAD".equals(method);
+			if (!head && !"GET".equals(method))
+			{
+				exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+				exchange.sendResponseHeaders(HTTP_BAD_METHOD, -1);
+				return;
+			}
+
+			String key = exchange.getRequestURI().getPath();
+			while (key.startsWith("/"))
+				key = key.substring(1);
+
+			MemoryOriginCache.Entry entry = cache.get(key);
+			Headers headers = exchange.getResponseHeaders();
+			headers.set("Access-Control-Allow-Origin", "*");
+			if (entry == null)
+			{
+				headers.set("Cache-Control", "no-cache");
+				exchange.sendResponseHeaders(HTTP_NOT_FOUND, -1);
+				return;
+			}
+
+			byte[] data = entry.getData();
+			headers.set("Content-Type", entry.getContentType());
+			headers.set("Cache-Control", "max-age=" + (entry.isPlaylist() ? playlistMaxAge : mediaSegmentMaxAge));
+			if (head)
+			{
+				headers.set("Content-Length", String.valueOf(data.length));
+				exchange.sendResponseHeaders(HTTP_OK, -1);
+				return;
+			}
+
+			exchange.sendResponseHeaders(HTTP_OK, data.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(data);
+			out.flush();
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * This code and all components (c) Copyright 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the BSD 3-Clause License.
+ */
+package com.mycompany.wms.example.pushpublish.protocol.cupertino;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class PlaylistContinuation
+{
+
+	/*
+	 * Continues a media playlist restored from a PlaylistStateStore after a restart.
+	 *
+	 * The base class starts a new media playlist with its own sequence numbers. Every media playlist it renders in this session is
+	 * rewritten so that its media segments continue the restored sequence, and the restored media segments are kept in front of the
+	 * new ones (separated by #EXT-X-DISCONTINUITY) until new media segments fill the window. #EXT-X-DISCONTINUITY-SEQUENCE is
+	 * incremented as discontinuities scroll out of the window.
+	 *
+	 * This runs on the decorated playlist (catch-up, encryption), so the state is saved as published. The restored media segments
+	 * bring their own tags, which the decorations of this session don't know about: if one of them is a gap, EXT-X-VERSION is raised
+	 * for EXT-X-GAP, and if they were encrypted and the first new media segment isn't, it gets #EXT-X-KEY:METHOD=NONE so the old key
+	 * doesn't carry over.
+	 *
+	 * If the base class already carried the playlist across sessions itself (the restored media segments are in its playlist, or its
+	 * sequence numbers are already past ours), the playlist is left alone.
+	 */
+
+	private final PlaylistState restored;
+	private boolean checked = false;
+	private boolean active = false;
+	private long offset = 0;
+
+	public PlaylistContinuation(PlaylistState restored)
+	{
+		this.restored = restored;
+	}
+
+	public synchronized boolean isActive()
+	{
+		return active;
+	}
+
+	public synchronized String continuePlaylist(String playlist)
+	{
+		if (checked && !active)
+			return playlist;
+
+		PlaylistState current = PlaylistState.parse(playlist);
+		if (!checked)
+		{
+			if (current.segments.isEmpty())
+				return playlist;
+
+			checked = true;
+			active = current.mediaSequence <= restored.getLastSequence() && !overlaps(current);
+			if (!active)
+				return playlist;
+			offset = restored.getLastSequence() + 1 - current.mediaSequence;
+		}
+
+		int restoredCount = restored.segments.size();
+		int keep = Math.max(0, restoredCount - current.segments.size());
+
+		long discontinuities = current.discontinuitySequence + restored.discontinuitySequence;
+		List<PlaylistState.Segment> dropped = restored.segments.subList(0, restoredCount - keep);
+		for (PlaylistState.Segment segment : dropped)
+			discontinuities += countDiscontinuities(segment.tags);
+
+		current.mediaSequence = current.mediaSequence + offset - keep;
+		if (keep > 0)
+		{
+			current.targetDuration = Math.max(current.targetDuration, restored.targetDuration);
+
+			List<PlaylistState.Segment> segments = new ArrayList<PlaylistState.Segment>(restored.segments.subList(restoredCount - keep, restoredCount));
+			PlaylistState.Segment first = current.segments.get(0);
+			if (countDiscontinuities(first.tags) == 0)
+				first = new PlaylistState.Segment(PlaylistState.TAG_DISCONTINUITY + "\n" + first.tags, first.uri);
+			if (isEncrypted(segments) && !hasTag(first.tags, PlaylistState.TAG_KEY))
+				first = new PlaylistState.Segment(PlaylistState.TAG_KEY + "METHOD=NONE\n" + first.tags, first.uri);
+			if (hasGap(segments))
+				raiseVersion(current, LiveEdgeCatchUp.GAP_VERSION);
+			segments.add(first);
+			segments.addAll(current.segments.subList(1, current.segments.size()));
+			current.segments.clear();
+			current.segments.addAll(segments);
+		}
+		else
+			discontinuities++;  // the discontinuity between the restored and new media segments is gone too.
+
+		current.discontinuitySequence = discontinuities;
+		return current.render();
+	}
+
+	private boolean overlaps(PlaylistState current)
+	{
+		Set<String> uris = new HashSet<String>();
+		for (PlaylistState.Segment segment : restored.segments)
+			uris.add(segment.uri);
+		for (PlaylistState.Segment segment : current.segments)
+		{
+			if (uris.contains(segment.uri))
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Whether the last #EXT-X-KEY of segments leaves the following media segments encrypted.
+	 */
+	private static boolean isEncrypted(List<PlaylistState.Segment> segments)
+	{
+		for (int i = segments.size() - 1; i >= 0; i--)
+		{
+			String[] lines = segments.get(i).tags.split("\n");
+			for (int j = lines.length - 1; j >= 0; j--)
+			{
+				if (lines[j].startsWith(PlaylistState.TAG_KEY))
+					return !lines[j].contains("METHOD=NONE");
+			}
+		}
+		return false;
+	}
+
+	private static boolean hasGap(List<PlaylistState.Segment> segments)
+	{
+		for (PlaylistState.Segment segment : segments)
+		{
+			if (hasTag(segment.tags, PlaylistState.TAG_GAP))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean hasTag(String tags, String tag)
+	{
+		for (String line : tags.split("\n"))
+		{
+			if (line.startsWith(tag))
+				return true;
+		}
+		return false;
+	}
+
+	private static void raiseVersion(PlaylistState state, int version)
+	{
+		for (int i = 0; i < state.header.size(); i++)
+		{
+			String line = state.header.get(i);
+			if (line.startsWith(PlaylistState.TAG_VERSION))
+			{
+				try
+				{
+					if (Integer.parseInt(line.substring(PlaylistState.TAG_VERSION.length()).trim()) >= version)
+						return;
+				}
+				catch (NumberFormatException e)
+				{
+					// replace it
+				}
+				state.header.set(i, PlaylistState.TAG_VERSION + version);
+				return;
+			}
+		}
+		int index = !state.header.isEmpty() && state.header.get(0).startsWith("#EXTM3U") ? 1 : 0;
+		state.header.add(index, PlaylistState.TAG_VERSION + version);
+	}
+
+	private static int countDiscontinuities(String tags)
+	{
+		int count = 0;
+		for (String line : tags.split("\n"))
+		{
+			if (line.equals(PlaylistState.TAG_DISCONTINUITY))
+				count++;
+		}
+		return count;
+	}
+}
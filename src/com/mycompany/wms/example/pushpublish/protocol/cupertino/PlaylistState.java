@@ -0,0 +1,196 @@
+/*
+ * This code and all components (c) Copyright 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the BSD 3-Clause License.
+ */
+package com.mycompany.wms.example.pushpublish.protocol.cupertino;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class PlaylistState
+{
+
+	/*
+	 * The live window of a rendered media playlist: its sequence numbers and, for every media segment, the URI and the tags that go
+	 * with it (#EXTINF with the duration, plus #EXT-X-KEY, #EXT-X-GAP, ... when present).
+	 *
+	 * parse() and render() work on the playlist text so the state can be saved exactly as it was published, whatever the base class
+	 * or the handler decorations put into it.
+	 */
+
+	public static final String TAG_MEDIA_SEQUENCE = "#EXT-X-MEDIA-SEQUENCE:";
+	public static final String TAG_DISCONTINUITY_SEQUENCE = "#EXT-X-DISCONTINUITY-SEQUENCE:";
+	public static final String TAG_TARGET_DURATION = "#EXT-X-TARGETDURATION:";
+	public static final String TAG_DISCONTINUITY = "#EXT-X-DISCONTINUITY";
+	public static final String TAG_VERSION = "#EXT-X-VERSION:";
+	public static final String TAG_KEY = "#EXT-X-KEY:";
+	public static final String TAG_GAP = "#EXT-X-GAP";
+
+	private static final String[] PLAYLIST_TAGS = {"#EXTM3U", "#EXT-X-VERSION", "#EXT-X-TARGETDURATION", "#EXT-X-MEDIA-SEQUENCE", "#EXT-X-DISCONTINUITY-SEQUENCE", "#EXT-X-PLAYLIST-TYPE", "#EXT-X-INDEPENDENT-SEGMENTS", "#EXT-X-ALLOW-CACHE", "#EXT-X-START"};
+
+	public static class Segment
+	{
+		final String tags;
+		final String uri;
+
+		public Segment(String tags, String uri)
+		{
+			this.tags = tags;
+			this.uri = uri;
+		}
+
+		/*
+		 * The lines in front of the URI, separated by '\n', always including #EXTINF.
+		 */
+		public String getTags()
+		{
+			return tags;
+		}
+
+		public String getUri()
+		{
+			return uri;
+		}
+	}
+
+	long mediaSequence = 0;
+	long discontinuitySequence = 0;
+	int targetDuration = 0;
+	long savedTime = 0;
+	final List<String> header = new ArrayList<String>();
+	final List<Segment> segments = new ArrayList<Segment>();
+	final List<String> footer = new ArrayList<String>();
+
+	public long getMediaSequence()
+	{
+		return mediaSequence;
+	}
+
+	public long getDiscontinuitySequence()
+	{
+		return discontinuitySequence;
+	}
+
+	public int getTargetDuration()
+	{
+		return targetDuration;
+	}
+
+	public long getSavedTime()
+	{
+		return savedTime;
+	}
+
+	public List<Segment> getSegments()
+	{
+		return segments;
+	}
+
+	/*
+	 * Sequence number of the last media segment, or mediaSequence - 1 if there are none.
+	 */
+	public long getLastSequence()
+	{
+		return mediaSequence + segments.size() - 1;
+	}
+
+	public static PlaylistState parse(String playlist)
+	{
+		PlaylistState state = new PlaylistState();
+		StringBuilder tags = new StringBuilder();
+		String[] lines = playlist.split("\n");
+		for (int i = 0; i < lines.length; i++)
+		{
+			String line = lines[i].trim();
+			if (line.length() == 0)
+				continue;
+
+			if (line.startsWith(TAG_MEDIA_SEQUENCE))
+				state.mediaSequence = parseLong(line.substring(TAG_MEDIA_SEQUENCE.length()));
+			else if (line.startsWith(TAG_DISCONTINUITY_SEQUENCE))
+				state.discontinuitySequence = parseLong(line.substring(TAG_DISCONTINUITY_SEQUENCE.length()));
+			else if (line.startsWith(TAG_TARGET_DURATION))
+				state.targetDuration = (int)parseLong(line.substring(TAG_TARGET_DURATION.length()));
+
+			if (!line.startsWith("#"))
+			{
+				state.segments.add(new Segment(tags.toString(), line));
+				tags.setLength(0);
+				state.footer.clear();
+			}
+			else if (isPlaylistTag(line))
+			{
+				if (state.segments.isEmpty() && tags.length() == 0)
+					state.header.add(line);
+			}
+			else if (!state.segments.isEmpty() && tags.length() == 0 && line.startsWith("#EXT-X-ENDLIST"))
+				state.footer.add(line);
+			else
+			{
+				if (tags.length() > 0)
+					tags.append('\n');
+				tags.append(line);
+			}
+		}
+		return state;
+	}
+
+	public String render()
+	{
+		StringBuilder out = new StringBuilder();
+		boolean mediaSequenceDone = false;
+		boolean discontinuitySequenceDone = discontinuitySequence == 0;
+		for (String line : header)
+		{
+			if (line.startsWith(TAG_MEDIA_SEQUENCE))
+			{
+				line = TAG_MEDIA_SEQUENCE + mediaSequence;
+				mediaSequenceDone = true;
+			}
+			else if (line.startsWith(TAG_DISCONTINUITY_SEQUENCE))
+			{
+				line = TAG_DISCONTINUITY_SEQUENCE + discontinuitySequence;
+				discontinuitySequenceDone = true;
+			}
+			else if (line.startsWith(TAG_TARGET_DURATION))
+				line = TAG_TARGET_DURATION + targetDuration;
+			out.append(line).append('\n');
+		}
+		if (!mediaSequenceDone)
+			out.append(TAG_MEDIA_SEQUENCE).append(mediaSequence).append('\n');
+		if (!discontinuitySequenceDone)
+			out.append(TAG_DISCONTINUITY_SEQUENCE).append(discontinuitySequence).append('\n');
+
+		for (Segment segment : segments)
+		{
+			if (segment.tags.length() > 0)
+				out.append(segment.tags).append('\n');
+			out.append(segment.uri).append('\n');
+		}
+		for (String line : footer)
+			out.append(line).append('\n');
+		return out.toString();
+	}
+
+	private static boolean isPlaylistTag(String line)
+	{
+		for (String tag : PLAYLIST_TAGS)
+		{
+			if (line.startsWith(tag))
+				return true;
+		}
+		return false;
+	}
+
+	private static long parseLong(String valueStr)
+	{
+		try
+		{
+			return Long.parseLong(valueStr.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+}
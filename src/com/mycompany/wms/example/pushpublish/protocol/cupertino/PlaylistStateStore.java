@@ -0,0 +1,267 @@
+/*
+ * This code and all components (c) Copyright 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the BSD 3-Clause License.
+ */
+package com.mycompany.wms.example.pushpublish.protocol.cupertino;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+public class PlaylistStateStore
+{
+
+	/*
+	 * Memory-mapped file holding the last published PlaylistState of one map entry, so a restarted server can continue the
+	 * media playlist (see PlaylistContinuation) without listing the destination.
+	 *
+	 * Saving is a handful of stores into the mapped buffer, the OS writes the pages back. That survives a crash or restart of the
+	 * server process, but not necessarily a power loss, which is fine for a window that is only kept for http.playlistTimeout.
+	 *
+	 * Layout (big endian):
+	 *  0 int magic
+	 *  4 int version
+	 *  8 long savedTime
+	 * 16 long mediaSequence
+	 * 24 long discontinuitySequence
+	 * 32 int targetDuration
+	 * 36 int segment count
+	 * 40 int segment data length
+	 * 44 int crc32 of bytes 8-43 and the segment data
+	 * 48 segment data: for each media segment, unsigned short length + UTF-8 tags, unsigned short length + UTF-8 uri
+	 *
+	 * The header is written after the segment data, a torn write fails the CRC and is ignored on load.
+	 *
+	 * The base class has no call for the end of a session, so a reconnecting entry gets a new handler instance while the old one may
+	 * still be around. Stores are shared per file (open()/release()), so a state file in use is mapped only once, however often the
+	 * entry reconnects.
+	 */
+
+	public static final int DEFAULT_CAPACITY = 256 * 1024;
+
+	private static final int MAGIC = 0x50504853;  // PPHS
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 48;
+	private static final int CRC_OFFSET = 44;
+	private static final int MAX_STRING = 0xffff;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Map<String, PlaylistStateStore> stores = new HashMap<String, PlaylistStateStore>();
+
+	private final File file;
+	private final int capacity;
+	private RandomAccessFile raf = null;
+	private MappedByteBuffer buffer = null;
+	private int references = 0;
+
+	private PlaylistStateStore(File file, int capacity) throws IOException
+	{
+		this.file = file;
+		this.capacity = capacity;
+
+		File dir = file.getParentFile();
+		if (dir != null && !dir.exists())
+			dir.mkdirs();
+
+		this.raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		}
+		catch (IOException e)
+		{
+			raf.close();
+			throw e;
+		}
+	}
+
+	/*
+	 * Returns the store for file, opening it if nobody has it open yet. Every open() needs a release().
+	 */
+	public static PlaylistStateStore open(File file, int capacity) throws IOException
+	{
+		synchronized (stores)
+		{
+			String key = file.getAbsolutePath();
+			PlaylistStateStore store = stores.get(key);
+			if (store == null)
+			{
+				store = new PlaylistStateStore(file, capacity);
+				stores.put(key, store);
+			}
+			store.references++;
+			return store;
+		}
+	}
+
+	/*
+	 * The directory for state files when "http.playlistStateDir" isn't set: <install-dir>/pushpublish-state. Not the Java
+	 * temporary directory, tmp cleaners and private tmp directories would remove the state we are keeping for the next start.
+	 */
+	public static String getDefaultDir()
+	{
+		String home = System.getProperty("com.wowza.wms.AppHome");
+		if (home == null)
+			home = System.getProperty("user.dir");
+		return home + "/pushpublish-state";
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	/*
+	 * Returns the saved state, or null if there is none, it is older than timeout milliseconds or it is damaged.
+	 */
+	public synchronized PlaylistState load(long timeout)
+	{
+		if (buffer == null || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+			return null;
+
+		PlaylistState state = new PlaylistState();
+		state.savedTime = buffer.getLong(8);
+		if (timeout > 0 && System.currentTimeMillis() - state.savedTime > timeout)
+			return null;
+
+		int count = buffer.getInt(36);
+		int length = buffer.getInt(40);
+		if (count < 0 || length < 0 || length > capacity - HEADER_SIZE || buffer.getInt(CRC_OFFSET) != getCRC(length))
+			return null;
+
+		state.mediaSequence = buffer.getLong(16);
+		state.discontinuitySequence = buffer.getLong(24);
+		state.targetDuration = buffer.getInt(32);
+		state.header.add("#EXTM3U");
+		state.header.add(PlaylistState.TAG_TARGET_DURATION + state.targetDuration);
+		state.header.add(PlaylistState.TAG_MEDIA_SEQUENCE + state.mediaSequence);
+
+		ByteBuffer data = buffer.duplicate();
+		data.position(HEADER_SIZE);
+		data.limit(HEADER_SIZE + length);
+		try
+		{
+			for (int i = 0; i < count; i++)
+			{
+				String tags = getString(data);
+				String uri = getString(data);
+				state.segments.add(new PlaylistState.Segment(tags, uri));
+			}
+		}
+		catch (RuntimeException e)
+		{
+			return null;
+		}
+		return state;
+	}
+
+	/*
+	 * Saves state, dropping the oldest media segments if they don't all fit.
+	 */
+	public synchronized void save(PlaylistState state)
+	{
+		if (buffer == null)
+			return;
+
+		List<PlaylistState.Segment> segments = state.segments;
+		int first = segments.size();
+		int length = 0;
+		while (first > 0)
+		{
+			PlaylistState.Segment segment = segments.get(first - 1);
+			int size = getSize(segment.tags) + getSize(segment.uri);
+			if (HEADER_SIZE + length + size > capacity)
+				break;
+			length += size;
+			first--;
+		}
+
+		ByteBuffer data = buffer.duplicate();
+		data.position(HEADER_SIZE);
+		for (int i = first; i < segments.size(); i++)
+		{
+			putString(data, segments.get(i).tags);
+			putString(data, segments.get(i).uri);
+		}
+
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putLong(8, System.currentTimeMillis());
+		buffer.putLong(16, state.mediaSequence + first);
+		buffer.putLong(24, state.discontinuitySequence);
+		buffer.putInt(32, state.targetDuration);
+		buffer.putInt(36, segments.size() - first);
+		buffer.putInt(40, length);
+		buffer.putInt(CRC_OFFSET, getCRC(length));
+	}
+
+	/*
+	 * Closes the file once the last user has released it. Java can't unmap it explicitly, the mapping goes away when the buffer is
+	 * garbage collected.
+	 */
+	public void release()
+	{
+		synchronized (stores)
+		{
+			if (--references > 0)
+				return;
+			stores.remove(file.getAbsolutePath());
+		}
+		close();
+	}
+
+	private synchronized void close()
+	{
+		buffer = null;
+		try
+		{
+			raf.close();
+		}
+		catch (IOException e)
+		{
+			// ignore
+		}
+	}
+
+	private int getCRC(int length)
+	{
+		CRC32 crc = new CRC32();
+		ByteBuffer data = buffer.duplicate();
+		data.position(8);
+		data.limit(CRC_OFFSET);
+		crc.update(data);
+		data.limit(HEADER_SIZE + length);
+		data.position(HEADER_SIZE);
+		crc.update(data);
+		return (int)crc.getValue();
+	}
+
+	private static int getSize(String value)
+	{
+		return 2 + Math.min(value.getBytes(UTF8).length, MAX_STRING);
+	}
+
+	private static void putString(ByteBuffer data, String value)
+	{
+		byte[] bytes = value.getBytes(UTF8);
+		int length = Math.min(bytes.length, MAX_STRING);
+		data.putShort((short)length);
+		data.put(bytes, 0, length);
+	}
+
+	private static String getString(ByteBuffer data)
+	{
+		int length = data.getShort() & 0xffff;
+		byte[] bytes = new byte[length];
+		data.get(bytes);
+		return new String(bytes, UTF8);
+	}
+}
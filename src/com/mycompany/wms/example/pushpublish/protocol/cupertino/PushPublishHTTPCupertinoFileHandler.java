@@ -8,12 +8,26 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.crypto.Cipher;
 
 import com.wowza.util.IPacketFragment;
 import com.wowza.util.PacketFragmentList;
@@ -45,14 +59,106 @@ public class PushPublishHTTPCupertinoFileHandler extends PushPublishHTTPCupertin
 	 * We reference the media playlists and the media segements using a preceeding "../" such that when the group master playlist references the different
 	 * media playlists that represent renditions, it can pick them up from different implementations without modification.
 	 *
-	 * If this is sending to a backup server, the <dstStreamName> has "-b" appended to the end
+	 * If this is sending to a backup server, the <dstStreamName> and <groupName> have "-b" appended to the end
 	 *
 	 */
 
+	/*
+	 * Memory origin mode ("file.memoryOrigin":"true") keeps the live window in a MemoryOriginCache and serves it from an embedded
+	 * HTTP server on "file.memoryOriginPort" using the same layout, relative to "file.memoryOriginPath" on that server instead of
+	 * <root-dir> (by default the application context, e.g. /live/_definst_/<dstStreamName>/chunklist.m3u8, so entries of different
+	 * applications sharing the port don't overwrite each other). Two entries that would still publish to the same path can't: the
+	 * second one is refused until the first one's media segments are gone.
+	 * Set "file.memoryOriginArchive":"true" to also write everything to <root-dir> in the background. At most
+	 * "file.memoryOriginArchiveQueueSize" MB wait to be archived, anything beyond that is dropped (and logged) rather than held in
+	 * memory while the disk is slower than ingest.
+	 */
+
+	private static final int DEFAULT_MEMORY_ORIGIN_PORT = 8088;
+	private static final long DEFAULT_MEMORY_ORIGIN_CACHE_SIZE = 256;  // MB
+	private static final int DEFAULT_MEMORY_ORIGIN_THREADS = 4;
+	private static final long DEFAULT_MEMORY_ORIGIN_ARCHIVE_QUEUE_SIZE = 64;  // MB
+
+	private static ExecutorService archiveExecutor = null;
+	private static final AtomicLong archiveQueued = new AtomicLong();
+
 	File rootDir = null;
 	boolean backup = false;
 	String groupName = null;
 
+	boolean memoryOriginEnabled = false;
+	boolean memoryOriginArchive = false;
+	int memoryOriginPort = DEFAULT_MEMORY_ORIGIN_PORT;
+	long memoryOriginCacheSize = DEFAULT_MEMORY_ORIGIN_CACHE_SIZE;
+	int memoryOriginThreads = DEFAULT_MEMORY_ORIGIN_THREADS;
+	int memoryOriginPlaylistMaxAge = 1;
+	int memoryOriginSegmentMaxAge = 3600;
+	long memoryOriginArchiveQueueSize = DEFAULT_MEMORY_ORIGIN_ARCHIVE_QUEUE_SIZE;
+	String memoryOriginPath = null;
+	MemoryOriginServer memoryOrigin = null;
+	private boolean memoryOriginRefused = false;
+	private long archiveDropped = 0;
+
+	/*
+	 * "http.catchUp":"true" skips media segments when we fall more than "http.catchUpMaxLatency" segment durations behind live,
+	 * until we are back within "http.catchUpResumeLatency". See LiveEdgeCatchUp.
+	 */
+	boolean catchUpEnabled = false;
+	double catchUpMaxLatency = LiveEdgeCatchUp.DEFAULT_MAX_LATENCY;
+	double catchUpResumeLatency = LiveEdgeCatchUp.DEFAULT_RESUME_LATENCY;
+	LiveEdgeCatchUp catchUp = null;
+
+	/*
+	 * "http.encryption":"aes-128" encrypts media segments while they are written, with a new key every "http.encryptionKeyRotation"
+	 * media segments. Keys are written next to the media segments, where anyone who can fetch the media segments can fetch them too,
+	 * unless "http.encryptionKeyUrl" points players elsewhere and "http.encryptionKeyDestination" is the directory they are written
+	 * to for that. See SegmentEncryptor.
+	 */
+	String encryptionMethod = null;
+	int encryptionKeyRotation = 10;
+	String encryptionKeyUrl = null;
+	File encryptionKeyDir = null;
+	SegmentEncryptor encryptor = null;
+
+	/*
+	 * With "http.playlistAcrossSessions":"true" the published media playlist is also saved to a memory-mapped file in
+	 * "http.playlistStateDir", so after a restart the media playlist continues where it left off, as long as that is within
+	 * "http.playlistTimeout". See PlaylistStateStore and PlaylistContinuation.
+	 */
+	boolean playlistAcrossSessions = false;
+	long playlistTimeout = 120000;
+	String playlistStateDir = PlaylistStateStore.getDefaultDir();
+	PlaylistStateStore playlistStateStore = null;
+	PlaylistContinuation playlistContinuation = null;
+
+	/*
+	 * When the primary and backup sessions of a stream write to the same filesystem, the second one to write a media segment hard
+	 * links the first one's copy instead of writing the same bytes again. Playlists are always written separately as their URIs
+	 * differ. See SegmentLinkRegistry.
+	 * This costs a CRC32 pass over every media segment, so it is only on for "destinationServer":"redundant" entries, the ones
+	 * with a backup session, unless "file.linkBackup" says otherwise (e.g. separate primary and backup entries).
+	 */
+	boolean linkBackup = false;
+	private Boolean linkBackupSetting = null;
+	private Boolean linkSameFileStore = null;
+
+	/*
+	 * "file.retentionTime" (seconds) cleans up <root-dir> in the background: media segments and keys older than that which no
+	 * playlist refers to any more, and empty session folders. At most "file.retentionScanLimit" files are checked every
+	 * "file.retentionInterval" seconds. Media segments dropped from the live window are then deleted in the background too.
+	 * See RetentionReaper.
+	 */
+	int retentionTime = 0;
+	int retentionScanLimit = RetentionReaper.DEFAULT_SCAN_LIMIT;
+	int retentionInterval = (int)(RetentionReaper.DEFAULT_INTERVAL / 1000);
+	RetentionReaper reaper = null;
+
+	/*
+	 * The group master playlist is written through a GroupPlaylistCoordinator shared by the members of the group: only when it
+	 * changes, and at most once every "http.groupPlaylistDebounce" milliseconds (0 writes every change right away).
+	 */
+	long groupPlaylistDebounce = GroupPlaylistCoordinator.DEFAULT_DEBOUNCE;
+
 	public PushPublishHTTPCupertinoFileHandler() throws LicensingException
 	{
 		super();
@@ -69,11 +175,94 @@ public class PushPublishHTTPCupertinoFileHandler extends PushPublishHTTPCupertin
 		// Call super.init() to initialize this profile and trigger call to our load() method
 		super.init(appInstance, streamName, stream, profileData, maps, pushPublisher, streamDebug);
 
+		if (linkBackupSetting != null)
+			linkBackup = linkBackupSetting;
+		else
+			linkBackup = "redundant".equalsIgnoreCase(PushPublishUtils.getMapString(maps, "destinationServer"));
+
+		if (catchUpEnabled)
+			catchUp = new LiveEdgeCatchUp(catchUpMaxLatency, catchUpResumeLatency);
+
+		if (encryptionMethod != null)
+		{
+			if (encryptionMethod.equalsIgnoreCase(SegmentEncryptor.METHOD_AES_128))
+				encryptor = new SegmentEncryptor(encryptionKeyRotation, encryptionKeyUrl);
+			else
+				logWarn("init", "Unsupported http.encryption: " + encryptionMethod + ", media segments will not be encrypted");
+		}
+		if (encryptor != null && encryptionKeyUrl != null && encryptionKeyDir == null)
+			logWarn("init", "http.encryptionKeyUrl is set without http.encryptionKeyDestination, keys are still written next to the media segments");
+		else if (encryptor != null && encryptionKeyUrl == null && encryptionKeyDir != null)
+		{
+			logWarn("init", "http.encryptionKeyDestination requires http.encryptionKeyUrl, keys are written next to the media segments");
+			encryptionKeyDir = null;
+		}
+
+		if (memoryOriginEnabled && memoryOriginArchive && rootDir == null)
+		{
+			logWarn("init", "file.memoryOriginArchive requires file.root, archiving disabled");
+			memoryOriginArchive = false;
+		}
+
+		if (memoryOriginEnabled)
+		{
+			try
+			{
+				memoryOrigin = MemoryOriginServer.getInstance(memoryOriginPort, memoryOriginCacheSize * 1024 * 1024, memoryOriginThreads, memoryOriginPlaylistMaxAge, memoryOriginSegmentMaxAge);
+				if (memoryOrigin.getMaxBytes() != memoryOriginCacheSize * 1024 * 1024 || memoryOrigin.getThreads() != memoryOriginThreads || memoryOrigin.getPlaylistMaxAge() != memoryOriginPlaylistMaxAge || memoryOrigin.getMediaSegmentMaxAge() != memoryOriginSegmentMaxAge)
+					logWarn("init", "Memory origin on port " + memoryOriginPort + " is shared and already running with cache size: " + (memoryOrigin.getMaxBytes() / (1024 * 1024)) + "MB, threads: " + memoryOrigin.getThreads() + ", playlist max-age: " + memoryOrigin.getPlaylistMaxAge() + ", segment max-age: " + memoryOrigin.getMediaSegmentMaxAge() + ", ignoring this entry's file.memoryOrigin* settings");
+				if (memoryOriginPath == null)
+					memoryOriginPath = appInstance.getContextStr();
+				memoryOriginPath = memoryOriginPath.replaceAll("^/+|/+$", "");
+				if (memoryOriginPath.length() > 0)
+					memoryOriginPath += "/";
+				logInfo("init", "Serving from memory origin on port: " + memoryOriginPort + ", path: /" + memoryOriginPath + (memoryOriginArchive ? ", archiving to: " + rootDir : ""));
+			}
+			catch (Exception e)
+			{
+				logError("init", "Failed to start memory origin on port: " + memoryOriginPort + ", writing to disk instead", e);
+				memoryOrigin = null;
+			}
+		}
+
+		if (retentionTime > 0)
+		{
+			if (rootDir == null)
+				logWarn("init", "file.retentionTime requires file.root, retention disabled");
+			else
+			{
+				reaper = RetentionReaper.getInstance(rootDir, retentionTime * 1000L, retentionScanLimit, Math.max(1, retentionInterval) * 1000L);
+				logInfo("init", "Removing unreferenced files older than " + (reaper.getRetentionTime() / 1000) + "s from: " + rootDir);
+			}
+		}
+
+		if (playlistAcrossSessions)
+			openPlaylistState();
 	}
 
 	@Override
 	public void load(HashMap<String, String> dataMap)
 	{
+		// the base class reads these too, leave them in the map.
+		String acrossSessionsStr = PushPublishUtils.getMapString(dataMap, "http.playlistAcrossSessions");
+		if (acrossSessionsStr != null)
+		{
+			acrossSessionsStr = acrossSessionsStr.toLowerCase(Locale.ENGLISH);
+			playlistAcrossSessions = acrossSessionsStr.startsWith("t") || acrossSessionsStr.startsWith("y");
+		}
+		String playlistTimeoutStr = PushPublishUtils.getMapString(dataMap, "http.playlistTimeout");
+		if (playlistTimeoutStr != null)
+		{
+			try
+			{
+				playlistTimeout = Long.parseLong(playlistTimeoutStr.trim());
+			}
+			catch (NumberFormatException e)
+			{
+				// the base class logs it.
+			}
+		}
+
 		super.load(dataMap);
 
 		String destStr = PushPublishUtils.removeMapString(dataMap, "file.root");
@@ -87,13 +276,61 @@ public class PushPublishHTTPCupertinoFileHandler extends PushPublishHTTPCupertin
 				logInfo("load", "Created destination folder: " + this.rootDir);
 			}
 		}
+
+		String memoryOriginStr = PushPublishUtils.removeMapString(dataMap, "file.memoryOrigin");
+		if (memoryOriginStr != null)
+			memoryOriginEnabled = isTrue(memoryOriginStr);
+
+		String archiveStr = PushPublishUtils.removeMapString(dataMap, "file.memoryOriginArchive");
+		if (archiveStr != null)
+			memoryOriginArchive = isTrue(archiveStr);
+
+		memoryOriginPort = getMapInt(dataMap, "file.memoryOriginPort", memoryOriginPort);
+		memoryOriginCacheSize = getMapInt(dataMap, "file.memoryOriginCacheSize", (int)memoryOriginCacheSize);
+		memoryOriginThreads = getMapInt(dataMap, "file.memoryOriginThreads", memoryOriginThreads);
+		memoryOriginPlaylistMaxAge = getMapInt(dataMap, "file.memoryOriginPlaylistMaxAge", memoryOriginPlaylistMaxAge);
+		memoryOriginSegmentMaxAge = getMapInt(dataMap, "file.memoryOriginSegmentMaxAge", memoryOriginSegmentMaxAge);
+		memoryOriginArchiveQueueSize = getMapInt(dataMap, "file.memoryOriginArchiveQueueSize", (int)memoryOriginArchiveQueueSize);
+		String memoryOriginPathStr = PushPublishUtils.removeMapString(dataMap, "file.memoryOriginPath");
+		if (memoryOriginPathStr != null)
+			memoryOriginPath = memoryOriginPathStr;
+
+		String catchUpStr = PushPublishUtils.removeMapString(dataMap, "http.catchUp");
+		if (catchUpStr != null)
+			catchUpEnabled = isTrue(catchUpStr);
+		catchUpMaxLatency = getMapDouble(dataMap, "http.catchUpMaxLatency", catchUpMaxLatency);
+		catchUpResumeLatency = getMapDouble(dataMap, "http.catchUpResumeLatency", catchUpResumeLatency);
+
+		String encryptionStr = PushPublishUtils.removeMapString(dataMap, "http.encryption");
+		if (encryptionStr != null && !encryptionStr.equalsIgnoreCase("none"))
+			encryptionMethod = encryptionStr;
+		encryptionKeyRotation = getMapInt(dataMap, "http.encryptionKeyRotation", encryptionKeyRotation);
+		String keyUrlStr = PushPublishUtils.removeMapString(dataMap, "http.encryptionKeyUrl");
+		if (keyUrlStr != null)
+			encryptionKeyUrl = keyUrlStr.endsWith("/") ? keyUrlStr : keyUrlStr + "/";
+		String keyDestinationStr = PushPublishUtils.removeMapString(dataMap, "http.encryptionKeyDestination");
+		if (keyDestinationStr != null)
+			encryptionKeyDir = new File(keyDestinationStr);
+
+		String linkBackupStr = PushPublishUtils.removeMapString(dataMap, "file.linkBackup");
+		if (linkBackupStr != null)
+			linkBackupSetting = isTrue(linkBackupStr);
+
+		String stateDirStr = PushPublishUtils.removeMapString(dataMap, "http.playlistStateDir");
+		if (stateDirStr != null)
+			playlistStateDir = stateDirStr;
+
+		retentionTime = getMapInt(dataMap, "file.retentionTime", retentionTime);
+		retentionScanLimit = getMapInt(dataMap, "file.retentionScanLimit", retentionScanLimit);
+		retentionInterval = getMapInt(dataMap, "file.retentionInterval", retentionInterval);
+		groupPlaylistDebounce = getMapInt(dataMap, "http.groupPlaylistDebounce", (int)groupPlaylistDebounce);
 	}
 
 	@Override
 	public boolean updateGroupMasterPlaylistPlaybackURI(String groupName, PlaylistModel masterPlaylist)
 	{
 		boolean retVal = true;
-		String newPath = "../" + groupName + "/" + masterPlaylist.getUri().getPath();
+		String newPath = "../" + groupName + (backup ? "-b/" : "/") + masterPlaylist.getUri().getPath();
 		try
 		{
 			masterPlaylist.setUri(new URI(newPath));
@@ -169,125 +406,227 @@ public class PushPublishHTTPCupertinoFileHandler extends PushPublishHTTPCupertin
 	@Override
 	public int sendGroupMasterPlaylist(String groupName, PlaylistModel playlist)
 	{
-		int retVal = 0;
-		FileOutputStream output = null;
 		try
 		{
-			File destinationDir = getDestionationGroupDir();
-			if (!destinationDir.exists())
-				destinationDir.mkdirs();
+			byte[] bytes = renderPlaylist(playlist, false);
+			if (bytes == null)
+				return 0;
 
-			File playlistFile = new File(rootDir, playlist.getUri().getPath().replaceFirst("../", ""));
-			if (!playlistFile.exists())
-				playlistFile.createNewFile();
-
-			output = new FileOutputStream(playlistFile, false);  // don't append
-			retVal = writePlaylist(playlist, output);
+			final String path = playlist.getUri().getPath().replaceFirst("../", "");
+			final File destinationDir = getDestionationGroupDir();
+			String key;
+			if (memoryOrigin != null)
+			{
+				key = "memoryOrigin:" + memoryOriginPort + "/" + memoryOriginPath + path;
+				memoryOrigin.getCache().addGroupMember(getMemoryOriginDir(path), getMemoryOriginDir());
+			}
+			else
+				key = rootDir.getAbsolutePath() + "/" + path;
+			return GroupPlaylistCoordinator.publish(key, bytes, groupPlaylistDebounce, new GroupPlaylistCoordinator.IGroupPlaylistWriter()
+			{
+				@Override
+				public int writeGroupPlaylist(byte[] bytes)
+				{
+					return storePlaylist("sendGroupMasterPlaylist", path, destinationDir, bytes);
+				}
+			});
 		}
 		catch (Exception e)
 		{
-			logError("sendGroupMasterPlaylist", "Failed to send master playlist to: " + playlist.getUri(), e);
+			logError("sendGroupMasterPlaylist", "Failed to send playlist to: " + playlist.getUri(), e);
 		}
-		finally
-		{
-			if (output != null)
-				try
-				{
-					output.flush();
-					output.close();
-				}
-				catch (Exception e2)
-				{
+		return 0;
+	}
 
-				}
-			;
+	@Override
+	public int sendMasterPlaylist(PlaylistModel playlist)
+	{
+		return storePlaylist("sendMasterPlaylist", playlist, getDestionationDir(), false);
+	}
+
+	@Override
+	public int sendMediaPlaylist(PlaylistModel playlist)
+	{
+		return storePlaylist("sendMediaPlaylist", playlist, getDestionationDir(), true);
+	}
+
+	@Override
+	public int sendMediaSegment(MediaSegmentModel mediaSegment)
+	{
+		if (catchUp != null && skipMediaSegment(mediaSegment))
+			return 1;  // skipped, marked as a gap in the media playlist.
+
+		int retVal = 0;
+		SegmentEncryptor.SegmentKey segmentKey = null;
+		boolean keyFailed = false;
+		if (encryptor != null)
+		{
+			segmentKey = encryptor.nextMediaSegment(mediaSegment.getUri().toString());
+			if (segmentKey.isFirst() && !publishKey(segmentKey))
+			{
+				encryptor.removeMediaSegment(mediaSegment.getUri().toString());
+				encryptor.discardKey();
+				keyFailed = true;  // not sent, but catch-up still has to see the time it took.
+			}
 		}
+
+		if (!keyFailed)
+			retVal = memoryOrigin != null ? cacheMediaSegment(mediaSegment, segmentKey) : writeMediaSegment(mediaSegment, segmentKey);
+		if (catchUp != null)
+			catchUp.mediaSegmentSent();
 		return retVal;
 	}
 
 	@Override
-	public int sendMasterPlaylist(PlaylistModel playlist)
+	public int deleteMediaSegment(MediaSegmentModel mediaSegment)
 	{
+		if (catchUp != null && catchUp.removeMediaSegment(mediaSegment.getUri().toString()))
+			return 1;  // skipped, never sent.
+
+		if (encryptor != null)
+		{
+			String keyName = encryptor.removeMediaSegment(mediaSegment.getUri().toString());
+			if (keyName != null)
+				deleteKey(keyName);
+		}
+
+		// segments that are being archived stay on disk, only the live window is dropped from memory.
+		if (memoryOrigin != null)
+		{
+			memoryOrigin.getCache().remove(getMemoryOriginDir() + "/" + mediaSegment.getUri());
+			return 1;
+		}
+
 		int retVal = 0;
-		FileOutputStream output = null;
-		try
+
+		File segment = new File(getDestionationDir() + "/" + mediaSegment.getUri());
+		if (linkBackup && rootDir != null)
+			SegmentLinkRegistry.remove(getLinkKey(segment), segment);
+		if (reaper != null)
 		{
-			File destinationDir = getDestionationDir();
-			if (!destinationDir.exists())
-				destinationDir.mkdirs();
+			reaper.delete(segment);
+			return 1;
+		}
+		if (segment.exists())
+			if (segment.delete())
+				retVal = 1;
+
+		return retVal;
+	}
+
+	@Override
+	public void setSendToBackupServer(boolean backup)
+	{
+		boolean changed = this.backup != backup;
+		this.backup = backup;
+		if (changed && playlistStateStore != null)
+			openPlaylistState();
+	}
+
+	@Override
+	public boolean isSendToBackupServer()
+	{
+		return this.backup;
+	}
+
+	@Override
+	public boolean outputOpen()
+	{
+		return true;
+	}
 
-			File playlistFile = new File(rootDir, playlist.getUri().getPath().replaceFirst("../", ""));
-			if (!playlistFile.exists())
-				playlistFile.createNewFile();
+	@Override
+	public boolean outputClose()
+	{
+		return true;
+	}
 
-			output = new FileOutputStream(playlistFile, false);  // don't append
-			retVal = writePlaylist(playlist, output);
+	@Override
+	public String getDestionationLogData()
+	{
+		File destinationDir = getDestionationDir();
+		String retVal = "Invalid Destination " + destinationDir.toString();
+		try
+		{
+			retVal = destinationDir.toURI().toURL().toString();
 		}
-		catch (Exception e)
+		catch (MalformedURLException e)
 		{
-			logError("sendMasterPlaylist", "Failed to send master playlist to: " + playlist.getUri(), e);
+			logError("getDestionationLogData", "Unable to convert " + destinationDir + " to valid path", e);
 		}
-		finally
+
+		return retVal;
+	}
+
+	private int storePlaylist(String method, PlaylistModel playlist, File destinationDir, boolean mediaPlaylist)
+	{
+		int retVal = 0;
+		try
 		{
-			if (output != null)
-				try
-				{
-					output.flush();
-					output.close();
-				}
-				catch (Exception e2)
-				{
+			byte[] bytes = renderPlaylist(playlist, mediaPlaylist);
+			if (bytes == null)
+				return retVal;
 
-				}
-			;
+			retVal = storePlaylist(method, playlist.getUri().getPath().replaceFirst("../", ""), destinationDir, bytes);
+		}
+		catch (Exception e)
+		{
+			logError(method, "Failed to send playlist to: " + playlist.getUri(), e);
 		}
 		return retVal;
 	}
 
-	@Override
-	public int sendMediaPlaylist(PlaylistModel playlist)
+	private int storePlaylist(String method, String path, File destinationDir, byte[] bytes)
 	{
 		int retVal = 0;
-		FileOutputStream output = null;
 		try
 		{
-			File destinationDir = getDestionationDir();
+			if (memoryOrigin != null)
+			{
+				String dir = getMemoryOriginDir(path);
+				if (dir.equals(getMemoryOriginDir()) && !claimMemoryOrigin(method))
+					return 0;
+				memoryOrigin.getCache().putPlaylist(dir, memoryOriginPath + path, bytes);
+				if (memoryOriginArchive)
+					archive(method, new File(rootDir, path), bytes);
+				return bytes.length;
+			}
+
 			if (!destinationDir.exists())
 				destinationDir.mkdirs();
 
-			File playlistFile = new File(rootDir, playlist.getUri().getPath().replaceFirst("../", ""));
-			if (!playlistFile.exists())
-				playlistFile.createNewFile();
-
-			output = new FileOutputStream(playlistFile, false);  // don't append
-			retVal = writePlaylist(playlist, output);
+			writeFile(new File(rootDir, path), bytes);
+			retVal = bytes.length;
 		}
 		catch (Exception e)
 		{
-			logError("sendMediaPlaylist", "Failed to send media playlist to: " + playlist.getUri(), e);
-		}
-		finally
-		{
-			if (output != null)
-				try
-				{
-					output.flush();
-					output.close();
-				}
-				catch (Exception e2)
-				{
-
-				}
-			;
+			logError(method, "Failed to send playlist to: " + path, e);
 		}
 		return retVal;
 	}
 
-	@Override
-	public int sendMediaSegment(MediaSegmentModel mediaSegment)
+	private byte[] renderPlaylist(PlaylistModel playlist, boolean mediaPlaylist)
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		PlaylistWriter writer = new PlaylistWriter(out, getContextStr());
+		if (!writer.write(playlist))
+			return null;
+
+		String outStr = out.toString();
+		if (catchUp != null)
+			outStr = catchUp.decoratePlaylist(outStr);
+		if (encryptor != null)
+			outStr = encryptor.decoratePlaylist(outStr);
+		if (mediaPlaylist)
+			outStr = persistPlaylist(outStr);
+		return outStr.getBytes();
+	}
+
+	private int writeMediaSegment(MediaSegmentModel mediaSegment, SegmentEncryptor.SegmentKey segmentKey)
 	{
 		int retVal = 0;
-		FileOutputStream output = null;
+		OutputStream output = null;
 		try
 		{
 			File destinationDir = getDestionationDir();
@@ -305,7 +644,19 @@ public class PushPublishHTTPCupertinoFileHandler extends PushPublishHTTPCupertin
 			PacketFragmentList list = mediaSegment.getFragmentList();
 			if (list != null)
 			{
+				// encrypted copies differ between sessions (different keys), so there is nothing to share.
+				CRC32 crc = null;
+				if (linkBackup && segmentKey == null && rootDir != null)
+				{
+					crc = new CRC32();
+					retVal = linkMediaSegment(file, list, crc);
+					if (retVal > 0)
+						return retVal;
+				}
+
 				output = new FileOutputStream(file, false);
+				if (segmentKey != null)
+					output = encryptor.wrap(output, segmentKey);
 
 				Iterator<IPacketFragment> itr = list.getFragments().iterator();
 				while (itr.hasNext())
@@ -318,6 +669,10 @@ public class PushPublishHTTPCupertinoFileHandler extends PushPublishHTTPCupertin
 					output.write(data);
 					retVal += data.length;
 				}
+
+				// only now that it is complete can the other session link to it.
+				if (crc != null)
+					SegmentLinkRegistry.register(getLinkKey(file), file, retVal, crc.getValue(), backup);
 			}
 			else
 				retVal = 1;  // empty fragment list.
@@ -344,75 +699,371 @@ public class PushPublishHTTPCupertinoFileHandler extends PushPublishHTTPCupertin
 		return retVal;
 	}
 
-	@Override
-	public int deleteMediaSegment(MediaSegmentModel mediaSegment)
+	/*
+	 * Hard links the other session's copy of this media segment to file if there is one with the same content.
+	 * Returns the media segment size if it was linked, 0 if the caller has to write it, crc is left set for registering it.
+	 */
+	private int linkMediaSegment(File file, PacketFragmentList list, CRC32 crc)
 	{
-		int retVal = 0;
+		int size = 0;
+		Iterator<IPacketFragment> itr = list.getFragments().iterator();
+		while (itr.hasNext())
+		{
+			IPacketFragment fragment = itr.next();
+			if (fragment.getLen() <= 0)
+				continue;
+			byte[] data = fragment.getBuffer();
+			crc.update(data);
+			size += data.length;
+		}
 
-		File segment = new File(getDestionationDir() + "/" + mediaSegment.getUri());
-		if (segment.exists())
-			if (segment.delete())
-				retVal = 1;
+		String key = getLinkKey(file);
+		File source = SegmentLinkRegistry.find(key, size, crc.getValue(), backup);
+		if (source != null && source.exists() && isSameFileStore(source, file))
+		{
+			try
+			{
+				Files.deleteIfExists(file.toPath());
+				Files.createLink(file.toPath(), source.toPath());
+				SegmentLinkRegistry.register(key, file, size, crc.getValue(), backup);
+				return size;
+			}
+			catch (Exception e)
+			{
+				logWarn("sendMediaSegment", "Failed to link " + file + " to " + source + ", writing a copy instead: " + e.getMessage());
+				// hard links not supported, or the directories are on different filesystems after all: don't try again. Anything
+				// else (e.g. the source was just deleted) only affects this media segment.
+				if (isLinkUnsupported(e))
+					linkSameFileStore = Boolean.FALSE;
+			}
+		}
+		return 0;
+	}
 
-		return retVal;
+	private String getLinkKey(File file)
+	{
+		return SegmentLinkRegistry.getKey(rootDir, getDstStreamName(), file.getName());
 	}
 
-	@Override
-	public void setSendToBackupServer(boolean backup)
+	private boolean isSameFileStore(File source, File file)
 	{
-		this.backup = backup;
+		if (linkSameFileStore == null)
+		{
+			try
+			{
+				linkSameFileStore = Files.getFileStore(source.toPath()).equals(Files.getFileStore(file.getParentFile().toPath()));
+				if (!linkSameFileStore)
+					logInfo("sendMediaSegment", "Primary and backup are on different filesystems, writing separate copies");
+			}
+			catch (IOException e)
+			{
+				return false;  // e.g. the source was just deleted, check again with the next media segment.
+			}
+		}
+		return linkSameFileStore;
 	}
 
-	@Override
-	public boolean isSendToBackupServer()
+	private static boolean isLinkUnsupported(Exception e)
 	{
-		return this.backup;
+		if (e instanceof UnsupportedOperationException)
+			return true;
+		if (e instanceof FileSystemException)
+		{
+			String reason = ((FileSystemException)e).getReason();
+			return reason != null && reason.toLowerCase(Locale.ENGLISH).contains("cross-device");
+		}
+		return false;
 	}
 
-	@Override
-	public boolean outputOpen()
+	private int cacheMediaSegment(MediaSegmentModel mediaSegment, SegmentEncryptor.SegmentKey segmentKey)
 	{
-		return true;
+		PacketFragmentList list = mediaSegment.getFragmentList();
+		if (list == null)
+			return 1;  // empty fragment list.
+
+		int size = 0;
+		Iterator<IPacketFragment> itr = list.getFragments().iterator();
+		while (itr.hasNext())
+		{
+			IPacketFragment fragment = itr.next();
+			if (fragment.getLen() > 0)
+				size += fragment.getBuffer().length;
+		}
+
+		// encrypt straight into the cached copy rather than copying and then encrypting.
+		Cipher cipher = null;
+		try
+		{
+			if (segmentKey != null)
+				cipher = encryptor.createCipher(segmentKey);
+
+			byte[] data = new byte[cipher != null ? SegmentEncryptor.getEncryptedLength(size) : size];
+			int pos = 0;
+			itr = list.getFragments().iterator();
+			while (itr.hasNext())
+			{
+				IPacketFragment fragment = itr.next();
+				if (fragment.getLen() <= 0)
+					continue;
+				byte[] buffer = fragment.getBuffer();
+				if (cipher != null)
+					pos += cipher.update(buffer, 0, buffer.length, data, pos);
+				else
+				{
+					System.arraycopy(buffer, 0, data, pos, buffer.length);
+					pos += buffer.length;
+				}
+			}
+			if (cipher != null)
+				cipher.doFinal(data, pos);
+
+			if (!claimMemoryOrigin("sendMediaSegment"))
+				return 0;
+			memoryOrigin.getCache().putMediaSegment(getMemoryOriginDir(), getMemoryOriginDir() + "/" + mediaSegment.getUri(), data);
+			if (memoryOriginArchive)
+				archive("sendMediaSegment", new File(getDestionationDir() + "/" + mediaSegment.getUri()), data);
+
+			return size;
+		}
+		catch (GeneralSecurityException e)
+		{
+			logError("sendMediaSegment", "Failed to encrypt media segment " + mediaSegment.getUri(), e);
+		}
+		return 0;
 	}
 
-	@Override
-	public boolean outputClose()
+	private boolean publishKey(SegmentEncryptor.SegmentKey segmentKey)
 	{
-		return true;
+		if (encryptionKeyDir != null)
+		{
+			try
+			{
+				writeFile(new File(encryptionKeyDir, segmentKey.getName()), segmentKey.getKey());
+				return true;
+			}
+			catch (Exception e)
+			{
+				logError("publishKey", "Failed to write key " + segmentKey.getName() + " to " + encryptionKeyDir, e);
+			}
+			return false;
+		}
+
+		if (memoryOrigin != null)
+		{
+			if (!claimMemoryOrigin("publishKey"))
+				return false;
+			memoryOrigin.getCache().putKey(getMemoryOriginDir(), getMemoryOriginDir() + "/" + segmentKey.getName(), segmentKey.getKey());
+			if (memoryOriginArchive)
+				archive("publishKey", new File(getDestionationDir(), segmentKey.getName()), segmentKey.getKey());
+			return true;
+		}
+
+		try
+		{
+			writeFile(new File(getDestionationDir(), segmentKey.getName()), segmentKey.getKey());
+			return true;
+		}
+		catch (Exception e)
+		{
+			logError("publishKey", "Failed to write key " + segmentKey.getName(), e);
+		}
+		return false;
 	}
 
-	@Override
-	public String getDestionationLogData()
+	private void deleteKey(String keyName)
 	{
-		File destinationDir = getDestionationDir();
-		String retVal = "Invalid Destination " + destinationDir.toString();
+		if (encryptionKeyDir == null && memoryOrigin != null)
+		{
+			memoryOrigin.getCache().remove(getMemoryOriginDir() + "/" + keyName);
+			return;
+		}
+
+		File key = new File(encryptionKeyDir != null ? encryptionKeyDir : getDestionationDir(), keyName);
+		if (reaper != null)
+			reaper.delete(key);
+		else if (key.exists())
+			key.delete();
+	}
+
+	private boolean skipMediaSegment(MediaSegmentModel mediaSegment)
+	{
+		boolean wasSkipping = catchUp.isSkipping();
+		String uri = mediaSegment.getUri().toString();
+		boolean skip = catchUp.skipMediaSegment(uri, (long)(mediaSegment.getDuration() * 1000));
+		if (skip)
+		{
+			if (!wasSkipping)
+				logWarn("sendMediaSegment", "Behind live by " + catchUp.getBehind() + "ms, skipping media segments to catch up");
+			logInfo("sendMediaSegment", "Skipped media segment " + uri + ", total skipped: " + catchUp.getSkipCount());
+		}
+		else if (wasSkipping)
+			logInfo("sendMediaSegment", "Caught up with live, total skipped: " + catchUp.getSkipCount());
+		return skip;
+	}
+
+	private void openPlaylistState()
+	{
+		closePlaylistState();
+
+		// playlistCrossName is shared by the primary and backup sessions of a redundant entry.
+		String name = (playlistCrossName + (backup ? "-b" : "")).replaceAll("[^A-Za-z0-9._-]", "_");
+		File file = new File(playlistStateDir, name + ".state");
 		try
 		{
-			retVal = destinationDir.toURI().toURL().toString();
+			playlistStateStore = PlaylistStateStore.open(file, PlaylistStateStore.DEFAULT_CAPACITY);
+			PlaylistState restored = playlistStateStore.load(playlistTimeout);
+			if (restored != null && !restored.getSegments().isEmpty())
+			{
+				playlistContinuation = new PlaylistContinuation(restored);
+				logInfo("openPlaylistState", "Restored " + restored.getSegments().size() + " media segments up to sequence " + restored.getLastSequence() + " from " + file);
+			}
 		}
-		catch (MalformedURLException e)
+		catch (IOException e)
 		{
-			logError("getDestionationLogData", "Unable to convert " + destinationDir + " to valid path", e);
+			logError("openPlaylistState", "Failed to open playlist state " + file, e);
+			playlistStateStore = null;
 		}
+	}
 
-		return retVal;
+	private void closePlaylistState()
+	{
+		if (playlistStateStore != null)
+			playlistStateStore.release();
+		playlistStateStore = null;
+		playlistContinuation = null;
 	}
 
-	private int writePlaylist(PlaylistModel playlist, FileOutputStream output) throws IOException
+	private String persistPlaylist(String playlist)
 	{
-		int retVal = 0;
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (playlistContinuation != null)
+			playlist = playlistContinuation.continuePlaylist(playlist);
+		if (playlistStateStore != null)
+			playlistStateStore.save(PlaylistState.parse(playlist));
+		return playlist;
+	}
 
-		PlaylistWriter writer = new PlaylistWriter(out, getContextStr());
-		if (writer.write(playlist))
+	private void archive(final String method, final File file, final byte[] data)
+	{
+		// the queue is shared by all entries, each entry drops its files while the total is over its own limit.
+		if (archiveQueued.addAndGet(data.length) > memoryOriginArchiveQueueSize * 1024 * 1024)
 		{
-			String outStr = out.toString();
-			byte[] bytes = outStr.getBytes();
-			output.write(bytes);
-			retVal = bytes.length;
+			archiveQueued.addAndGet(-data.length);
+			if (archiveDropped++ == 0)
+				logWarn(method, "Archive queue is full (" + memoryOriginArchiveQueueSize + "MB), dropping " + file + " and further files until it drains");
+			return;
+		}
+		if (archiveDropped > 0)
+		{
+			logInfo(method, "Archive queue drained, dropped " + archiveDropped + " files");
+			archiveDropped = 0;
 		}
 
-		return retVal;
+		getArchiveExecutor().execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					writeFile(file, data);
+				}
+				catch (Exception e)
+				{
+					logError(method, "Failed to archive " + file, e);
+				}
+				finally
+				{
+					archiveQueued.addAndGet(-data.length);
+				}
+			}
+		});
+	}
+
+	/*
+	 * Writes to a temporary file and renames it over file, so players and the RetentionReaper never see a truncated playlist or key.
+	 */
+	private static void writeFile(File file, byte[] data) throws IOException
+	{
+		File dir = file.getParentFile();
+		if (dir != null && !dir.exists())
+			dir.mkdirs();
+
+		File temp = new File(dir, "." + file.getName() + ".tmp");
+		FileOutputStream output = new FileOutputStream(temp, false);  // don't append
+		try
+		{
+			output.write(data);
+			output.flush();
+		}
+		finally
+		{
+			output.close();
+		}
+
+		try
+		{
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static synchronized ExecutorService getArchiveExecutor()
+	{
+		// single thread so archived playlists and segments land on disk in the order they were published.
+		if (archiveExecutor == null)
+		{
+			archiveExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "PushPublishMemoryOriginArchive");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return archiveExecutor;
+	}
+
+	private String getDestinationKey()
+	{
+		if (!this.backup)
+			return getDstStreamName();
+		return getDstStreamName() + "-b";
+	}
+
+	/*
+	 * Memory origin directory of this session's playlists and media segments: <path>/<dstStreamName>.
+	 */
+	private String getMemoryOriginDir()
+	{
+		return memoryOriginPath + getDestinationKey();
+	}
+
+	/*
+	 * Memory origin directory of a playlist path relative to the origin path, e.g. <groupName>/playlist.m3u8.
+	 */
+	private String getMemoryOriginDir(String path)
+	{
+		int slash = path.lastIndexOf('/');
+		return memoryOriginPath + (slash > 0 ? path.substring(0, slash) : "");
+	}
+
+	private boolean claimMemoryOrigin(String method)
+	{
+		if (memoryOrigin.getCache().claim(getMemoryOriginDir(), playlistCrossName))
+		{
+			memoryOriginRefused = false;
+			return true;
+		}
+		if (!memoryOriginRefused)
+			logError(method, "Memory origin port " + memoryOriginPort + " already has another entry publishing to /" + getMemoryOriginDir() + ", set a different file.memoryOriginPath");
+		memoryOriginRefused = true;
+		return false;
 	}
 
 	private File getDestionationDir()
@@ -426,6 +1077,44 @@ public class PushPublishHTTPCupertinoFileHandler extends PushPublishHTTPCupertin
 	{
 		if (!this.backup)
 			return new File(this.rootDir + "/" + this.groupName);
-		return new File(this.rootDir + "/" + getDstStreamName() + "-b");
+		return new File(this.rootDir + "/" + this.groupName + "-b");
+	}
+
+	private int getMapInt(HashMap<String, String> dataMap, String key, int defaultValue)
+	{
+		String valueStr = PushPublishUtils.removeMapString(dataMap, key);
+		if (valueStr == null)
+			return defaultValue;
+		try
+		{
+			return Integer.parseInt(valueStr.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			logWarn("load", "Invalid value for " + key + ": " + valueStr + ", using: " + defaultValue);
+		}
+		return defaultValue;
+	}
+
+	private double getMapDouble(HashMap<String, String> dataMap, String key, double defaultValue)
+	{
+		String valueStr = PushPublishUtils.removeMapString(dataMap, key);
+		if (valueStr == null)
+			return defaultValue;
+		try
+		{
+			return Double.parseDouble(valueStr.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			logWarn("load", "Invalid value for " + key + ": " + valueStr + ", using: " + defaultValue);
+		}
+		return defaultValue;
+	}
+
+	private static boolean isTrue(String valueStr)
+	{
+		valueStr = valueStr.toLowerCase(Locale.ENGLISH);
+		return valueStr.startsWith("t") || valueStr.startsWith("y");
 	}
 }
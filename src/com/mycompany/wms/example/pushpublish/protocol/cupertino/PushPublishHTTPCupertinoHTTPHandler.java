@@ -4,18 +4,28 @@
  */
 package com.mycompany.wms.example.pushpublish.protocol.cupertino;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
 
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLHandshakeException;
+
 import com.wowza.util.IPacketFragment;
 import com.wowza.util.PacketFragmentList;
 import com.wowza.util.StringUtils;
@@ -47,12 +57,13 @@ public class PushPublishHTTPCupertinoHTTPHandler extends PushPublishHTTPCupertin
 	 * We reference the media playlists and the media segements using a preceeding "../" such that when the group master playlist references the different
 	 * media playlists that represent renditions, it can pick them up from different implementations without modification.
 	 *
-	 * If this is sending to a backup server, the <dstStreamName> has "-b" appended to the end
+	 * If this is sending to a backup server, the <dstStreamName> and <groupName> have "-b" appended to the end
 	 *
 	 */
 
 	private static final int DEFAULT_HTTP_PORT = 80;
 	private static final int DEFAULT_HTTPS_PORT = 443;
+	private static final int UPLOAD_BUFFER_SIZE = 64 * 1024;
 
 	String basePath = "/";
 	String httpHost = "example.com";
@@ -64,6 +75,63 @@ public class PushPublishHTTPCupertinoHTTPHandler extends PushPublishHTTPCupertin
 	private int connectionTimeout = 5000;
 	private int readTimeout = 5000;
 
+	/*
+	 * With sendSSL, all instances share one PushPublishTLSContext so connections resume TLS sessions and are kept alive between
+	 * requests. The destination is pre-warmed (one handshake to fill the session cache) when the stream starts, unless
+	 * "http.tlsPrewarm" is false or connections go through a proxy. A failed pre-warm is tried again before later batches,
+	 * TLS_PREWARM_RETRY_DELAY after the first failure and doubling, up to TLS_PREWARM_ATTEMPTS attempts.
+	 */
+	private static final long TLS_STATS_INTERVAL = 60000;
+	private static final int TLS_PREWARM_ATTEMPTS = 5;
+	private static final long TLS_PREWARM_RETRY_DELAY = 10000;
+
+	boolean tlsPrewarm = true;
+	boolean streamDebug = false;
+	PushPublishTLSContext tlsContext = null;
+	private volatile boolean tlsPrewarmed = false;
+	private volatile boolean tlsPrewarmPending = false;
+	private volatile int tlsPrewarmFailures = 0;
+	private volatile long tlsPrewarmRetryTime = 0;
+	private long tlsStatsLogTime = 0;
+
+	/*
+	 * "http.catchUp":"true" skips media segments when we fall more than "http.catchUpMaxLatency" segment durations behind live,
+	 * until we are back within "http.catchUpResumeLatency". See LiveEdgeCatchUp.
+	 */
+	boolean catchUpEnabled = false;
+	double catchUpMaxLatency = LiveEdgeCatchUp.DEFAULT_MAX_LATENCY;
+	double catchUpResumeLatency = LiveEdgeCatchUp.DEFAULT_RESUME_LATENCY;
+	LiveEdgeCatchUp catchUp = null;
+
+	/*
+	 * "http.encryption":"aes-128" encrypts media segments while they are uploaded, with a new key every "http.encryptionKeyRotation"
+	 * media segments. Keys are uploaded next to the media segments, where anyone who can fetch the media segments can fetch them too,
+	 * unless "http.encryptionKeyUrl" points players elsewhere and "http.encryptionKeyDestination" is the base URL they are uploaded
+	 * to for that. See SegmentEncryptor.
+	 */
+	String encryptionMethod = null;
+	int encryptionKeyRotation = 10;
+	String encryptionKeyUrl = null;
+	String encryptionKeyDestination = null;
+	SegmentEncryptor encryptor = null;
+
+	/*
+	 * With "http.playlistAcrossSessions":"true" the published media playlist is also saved to a memory-mapped file in
+	 * "http.playlistStateDir", so after a restart the media playlist continues where it left off, as long as that is within
+	 * "http.playlistTimeout". See PlaylistStateStore and PlaylistContinuation.
+	 */
+	boolean playlistAcrossSessions = false;
+	long playlistTimeout = 120000;
+	String playlistStateDir = PlaylistStateStore.getDefaultDir();
+	PlaylistStateStore playlistStateStore = null;
+	PlaylistContinuation playlistContinuation = null;
+
+	/*
+	 * The group master playlist is uploaded through a GroupPlaylistCoordinator shared by the members of the group: only when it
+	 * changes, and at most once every "http.groupPlaylistDebounce" milliseconds (0 uploads every change right away).
+	 */
+	long groupPlaylistDebounce = GroupPlaylistCoordinator.DEFAULT_DEBOUNCE;
+
 	public PushPublishHTTPCupertinoHTTPHandler() throws LicensingException
 	{
 		super();
@@ -79,12 +147,73 @@ public class PushPublishHTTPCupertinoHTTPHandler extends PushPublishHTTPCupertin
 
 		// Call super.init() to initialize this profile and trigger call to our load() method
 		super.init(appInstance, streamName, stream, profileData, maps, pushPublisher, streamDebug);
+
+		this.streamDebug = streamDebug;
+		if (playlistAcrossSessions)
+			openPlaylistState();
+		if (catchUpEnabled)
+			catchUp = new LiveEdgeCatchUp(catchUpMaxLatency, catchUpResumeLatency);
+
+		if (encryptionMethod != null)
+		{
+			if (encryptionMethod.equalsIgnoreCase(SegmentEncryptor.METHOD_AES_128))
+				encryptor = new SegmentEncryptor(encryptionKeyRotation, encryptionKeyUrl);
+			else
+				logWarn("init", "Unsupported http.encryption: " + encryptionMethod + ", media segments will not be encrypted");
+		}
+		if (encryptor != null && encryptionKeyUrl != null && encryptionKeyDestination == null)
+			logWarn("init", "http.encryptionKeyUrl is set without http.encryptionKeyDestination, keys are still uploaded next to the media segments");
+		else if (encryptor != null && encryptionKeyUrl == null && encryptionKeyDestination != null)
+		{
+			logWarn("init", "http.encryptionKeyDestination requires http.encryptionKeyUrl, keys are uploaded next to the media segments");
+			encryptionKeyDestination = null;
+		}
+
+		if (isSendSSL)
+		{
+			try
+			{
+				tlsContext = PushPublishTLSContext.getInstance();
+				if (tlsPrewarm && PushPublishTLSContext.isProxied(httpHost, port))
+				{
+					logInfo("init", "Connections to " + httpHost + ":" + port + " go through a proxy, not pre-warming TLS");
+					tlsPrewarm = false;
+				}
+				if (tlsPrewarm)
+					prewarmTLS();
+			}
+			catch (Exception e)
+			{
+				logError("init", "Failed to create shared TLS context, using default", e);
+				tlsContext = null;
+			}
+		}
 	}
 
 	@Override
 	public void load(HashMap<String, String> dataMap)
 	{
 		System.out.println("load: " + dataMap);
+		// the base class reads these too, leave them in the map.
+		String acrossSessionsStr = PushPublishUtils.getMapString(dataMap, "http.playlistAcrossSessions");
+		if (acrossSessionsStr != null)
+		{
+			acrossSessionsStr = acrossSessionsStr.toLowerCase(Locale.ENGLISH);
+			playlistAcrossSessions = acrossSessionsStr.startsWith("t") || acrossSessionsStr.startsWith("y");
+		}
+		String playlistTimeoutStr = PushPublishUtils.getMapString(dataMap, "http.playlistTimeout");
+		if (playlistTimeoutStr != null)
+		{
+			try
+			{
+				playlistTimeout = Long.parseLong(playlistTimeoutStr.trim());
+			}
+			catch (NumberFormatException e)
+			{
+				// the base class logs it.
+			}
+		}
+
 		super.load(dataMap);
 
 		httpHost = hostname;
@@ -105,6 +234,39 @@ public class PushPublishHTTPCupertinoHTTPHandler extends PushPublishHTTPCupertin
 			isSendSSL = sendSSLStr.startsWith("t") || sendSSLStr.startsWith("y");
 		}
 
+		String tlsPrewarmStr = PushPublishUtils.removeMapString(dataMap, "http.tlsPrewarm");
+		if (tlsPrewarmStr != null)
+		{
+			tlsPrewarmStr = tlsPrewarmStr.toLowerCase(Locale.ENGLISH);
+			tlsPrewarm = tlsPrewarmStr.startsWith("t") || tlsPrewarmStr.startsWith("y");
+		}
+
+		String catchUpStr = PushPublishUtils.removeMapString(dataMap, "http.catchUp");
+		if (catchUpStr != null)
+		{
+			catchUpStr = catchUpStr.toLowerCase(Locale.ENGLISH);
+			catchUpEnabled = catchUpStr.startsWith("t") || catchUpStr.startsWith("y");
+		}
+		catchUpMaxLatency = getMapDouble(dataMap, "http.catchUpMaxLatency", catchUpMaxLatency);
+		catchUpResumeLatency = getMapDouble(dataMap, "http.catchUpResumeLatency", catchUpResumeLatency);
+
+		String encryptionStr = PushPublishUtils.removeMapString(dataMap, "http.encryption");
+		if (encryptionStr != null && !encryptionStr.equalsIgnoreCase("none"))
+			encryptionMethod = encryptionStr;
+		encryptionKeyRotation = getMapInt(dataMap, "http.encryptionKeyRotation", encryptionKeyRotation);
+		String keyUrlStr = PushPublishUtils.removeMapString(dataMap, "http.encryptionKeyUrl");
+		if (keyUrlStr != null)
+			encryptionKeyUrl = keyUrlStr.endsWith("/") ? keyUrlStr : keyUrlStr + "/";
+		String keyDestinationStr = PushPublishUtils.removeMapString(dataMap, "http.encryptionKeyDestination");
+		if (keyDestinationStr != null)
+			encryptionKeyDestination = keyDestinationStr.endsWith("/") ? keyDestinationStr : keyDestinationStr + "/";
+
+		String stateDirStr = PushPublishUtils.removeMapString(dataMap, "http.playlistStateDir");
+		if (stateDirStr != null)
+			playlistStateDir = stateDirStr;
+
+		groupPlaylistDebounce = getMapInt(dataMap, "http.groupPlaylistDebounce", (int)groupPlaylistDebounce);
+
 		// set default http(s) port if it hasn't been changed from the default rtmp port.
 		if (port == 1935)
 		{
@@ -117,7 +279,7 @@ public class PushPublishHTTPCupertinoHTTPHandler extends PushPublishHTTPCupertin
 	public boolean updateGroupMasterPlaylistPlaybackURI(String groupName, PlaylistModel masterPlaylist)
 	{
 		boolean retVal = true;
-		String newPath = "../" + groupName + "/" + masterPlaylist.getUri().getPath();
+		String newPath = "../" + groupName + (backup ? "-b/" : "/") + masterPlaylist.getUri().getPath();
 		try
 		{
 			masterPlaylist.setUri(new URI(newPath));
@@ -193,11 +355,21 @@ public class PushPublishHTTPCupertinoHTTPHandler extends PushPublishHTTPCupertin
 	@Override
 	public int sendGroupMasterPlaylist(String groupName, PlaylistModel playlist)
 	{
-		int retVal = 0;
-		String playlistPath = playlist.getUri().getPath().replaceFirst("../", basePath);
+		final String playlistPath = playlist.getUri().getPath().replaceFirst("../", basePath);
 
-		retVal = writePlaylist(playlist, playlistPath);
-		return retVal;
+		String outStr = renderPlaylist(playlist, false);
+		if (outStr == null)
+			return 0;
+
+		final String key = getUrl(playlistPath);
+		return GroupPlaylistCoordinator.publish(key, outStr.getBytes(), groupPlaylistDebounce, new GroupPlaylistCoordinator.IGroupPlaylistWriter()
+		{
+			@Override
+			public int writeGroupPlaylist(byte[] bytes)
+			{
+				return putData("sendGroupMasterPlaylist", key, bytes);
+			}
+		});
 	}
 
 	@Override
@@ -206,7 +378,7 @@ public class PushPublishHTTPCupertinoHTTPHandler extends PushPublishHTTPCupertin
 		int retVal = 0;
 		String playlistPath = playlist.getUri().getPath().replaceFirst("../", basePath);
 
-		retVal = writePlaylist(playlist, playlistPath);
+		retVal = writePlaylist(playlist, playlistPath, false);
 		return retVal;
 	}
 
@@ -216,75 +388,90 @@ public class PushPublishHTTPCupertinoHTTPHandler extends PushPublishHTTPCupertin
 		int retVal = 0;
 		String playlistPath = playlist.getUri().getPath().replaceFirst("../", basePath);
 
-		retVal = writePlaylist(playlist, playlistPath);
+		retVal = writePlaylist(playlist, playlistPath, true);
 		return retVal;
 	}
 
 	@Override
 	public int sendMediaSegment(MediaSegmentModel mediaSegment)
 	{
+		if (catchUp != null && skipMediaSegment(mediaSegment))
+			return 1;  // skipped, marked as a gap in the media playlist.
+
 		int size = 0;
 		URL url = null;
-		HttpURLConnection conn = null;
 		try
 		{
 			PacketFragmentList list = mediaSegment.getFragmentList();
 			if (list != null && list.size() != 0)
 			{
-				url = new URL((isSendSSL ? "https://" : "http://") + httpHost + getPortStr() + "/" + getDestinationPath() + "/" + mediaSegment.getUri());
-				conn = (HttpURLConnection)url.openConnection();
-				conn.setConnectTimeout(connectionTimeout);
-				conn.setReadTimeout(readTimeout);
-				conn.setRequestMethod("PUT");
-				conn.setDoOutput(true);
-
-				Iterator<IPacketFragment> itr = list.getFragments().iterator();
-				while (itr.hasNext())
+				SegmentEncryptor.SegmentKey segmentKey = null;
+				boolean keyFailed = false;
+				if (encryptor != null)
 				{
-					IPacketFragment fragment = itr.next();
-					if (fragment.getLen() <= 0)
-						continue;
-					byte[] data = fragment.getBuffer();
+					segmentKey = encryptor.nextMediaSegment(mediaSegment.getUri().toString());
+					if (segmentKey.isFirst() && putData("publishKey", getKeyUrl(segmentKey.getName()), segmentKey.getKey()) == 0)
+					{
+						encryptor.removeMediaSegment(mediaSegment.getUri().toString());
+						encryptor.discardKey();
+						keyFailed = true;  // not sent, but catch-up still has to see the time it took.
+					}
+				}
 
-					conn.getOutputStream().write(data);
-					size += data.length;
+				if (!keyFailed)
+				{
+					url = new URL((isSendSSL ? "https://" : "http://") + httpHost + getPortStr() + "/" + getDestinationPath() + "/" + mediaSegment.getUri());
+					try
+					{
+						size = putMediaSegment(url, list, segmentKey, true);
+					}
+					catch (IOException e)
+					{
+						if (!isRetryable(e))
+							throw e;
+						// In streaming mode HttpURLConnection can't resend the body itself if the kept-alive connection it picked was
+						// closed by the server in the meantime. Try once more without streaming mode, then it buffers the body and
+						// retries on a new connection if that happens again.
+						logWarn("sendMediaSegment", "Failed to send media segment data to " + url + ", retrying: " + e.getMessage());
+						size = putMediaSegment(url, list, segmentKey, false);
+					}
 				}
-				int status = conn.getResponseCode();
-				if (status < 200 || status >= 300)
-					size = 0;
 			}
 			else
 				size = 1;  // empty fragment list.
 		}
 		catch (Exception e)
 		{
-			logError("sendMediaSegment", "Failed to send media segment data to " + url.toString(), e);
+			logError("sendMediaSegment", "Failed to send media segment data to " + url, e);
 			size = 0;
 		}
-		finally
-		{
-			if (conn != null)
-			{
-				conn.disconnect();
-			}
-		}
+		if (catchUp != null)
+			catchUp.mediaSegmentSent();
 		return size;
 	}
 
 	@Override
 	public int deleteMediaSegment(MediaSegmentModel mediaSegment)
 	{
+		if (catchUp != null && catchUp.removeMediaSegment(mediaSegment.getUri().toString()))
+			return 1;  // skipped, never sent.
+
+		if (encryptor != null)
+		{
+			String keyName = encryptor.removeMediaSegment(mediaSegment.getUri().toString());
+			if (keyName != null)
+				deleteData("deleteKey", getKeyUrl(keyName));
+		}
+
 		int retVal = 0;
 		URL url = null;
 		HttpURLConnection conn = null;
 		OutputStream out = null;
+		boolean failed = false;
 		try
 		{
 			url = new URL((isSendSSL ? "https://" : "http://") + httpHost + getPortStr() + "/" + getDestinationPath() + "/" + mediaSegment.getUri());
-			conn = (HttpURLConnection)url.openConnection();
-			conn.setConnectTimeout(connectionTimeout);
-			conn.setReadTimeout(readTimeout);
-			conn.setRequestMethod("DELETE");
+			conn = openConnection(url, "DELETE");
 			int status = conn.getResponseCode();
 			if (status >= 200 || status < 300)
 				retVal = 1;
@@ -295,6 +482,7 @@ public class PushPublishHTTPCupertinoHTTPHandler extends PushPublishHTTPCupertin
 		{
 			logError("deleteMediaSegment", "Failed to delete media segment " + url.toString(), e);
 			retVal = 0;
+			failed = true;
 		}
 		finally
 		{
@@ -311,7 +499,7 @@ public class PushPublishHTTPCupertinoHTTPHandler extends PushPublishHTTPCupertin
 			}
 			if (conn != null)
 			{
-				conn.disconnect();
+				releaseConnection(conn, failed);
 			}
 		}
 		return retVal;
@@ -320,7 +508,10 @@ public class PushPublishHTTPCupertinoHTTPHandler extends PushPublishHTTPCupertin
 	@Override
 	public void setSendToBackupServer(boolean backup)
 	{
+		boolean changed = this.backup != backup;
 		this.backup = backup;
+		if (changed && playlistStateStore != null)
+			openPlaylistState();
 	}
 
 	@Override
@@ -332,12 +523,24 @@ public class PushPublishHTTPCupertinoHTTPHandler extends PushPublishHTTPCupertin
 	@Override
 	public boolean outputOpen()
 	{
+		// init() pre-warm failed or was skipped, try again before this batch so the next one doesn't pay for the handshake.
+		if (tlsContext != null && tlsPrewarm && !tlsPrewarmed && !tlsPrewarmPending && tlsPrewarmFailures < TLS_PREWARM_ATTEMPTS && System.currentTimeMillis() >= tlsPrewarmRetryTime)
+			prewarmTLS();
 		return true;
 	}
 
 	@Override
 	public boolean outputClose()
 	{
+		if (tlsContext != null && streamDebug)
+		{
+			long now = System.currentTimeMillis();
+			if (now - tlsStatsLogTime >= TLS_STATS_INTERVAL)
+			{
+				tlsStatsLogTime = now;
+				logInfo("outputClose", "TLS handshakes: " + tlsContext.getHandshakeCount() + ", resumed: " + tlsContext.getResumedCount());
+			}
+		}
 		return true;
 	}
 
@@ -347,28 +550,22 @@ public class PushPublishHTTPCupertinoHTTPHandler extends PushPublishHTTPCupertin
 		return "{\"" + (isSendSSL ? "https://" : "http://") + httpHost + getPortStr() + "/" + getDestinationPath() + "\"}";
 	}
 
-	private int writePlaylist(PlaylistModel playlist, String playlistPath)
+	private int writePlaylist(PlaylistModel playlist, String playlistPath, boolean mediaPlaylist)
 	{
 		System.out.println("***********************************" + playlistPath);
 		int retVal = 0;
 		URL url = null;
 		HttpURLConnection conn = null;
+		boolean failed = false;
 		try
 		{
 			url = new URL((isSendSSL ? "https://" : "http://") + httpHost + getPortStr() + "/" + playlistPath);
-			conn = (HttpURLConnection)url.openConnection();
-			conn.setConnectTimeout(connectionTimeout);
-			conn.setReadTimeout(readTimeout);
+			conn = openConnection(url, "PUT");
 			conn.setDoOutput(true);
-			conn.setRequestMethod("PUT");
-
-			ByteArrayOutputStream out = new ByteArrayOutputStream();
 
-			PlaylistWriter writer = new PlaylistWriter(out, getContextStr());
-			String outStr = "";
-			if (writer.write(playlist))
+			String outStr = renderPlaylist(playlist, mediaPlaylist);
+			if (outStr != null)
 			{
-				outStr = out.toString();
 				byte[] bytes = outStr.getBytes();
 				conn.getOutputStream().write(bytes);
 				retVal = bytes.length;
@@ -385,17 +582,315 @@ public class PushPublishHTTPCupertinoHTTPHandler extends PushPublishHTTPCupertin
 		{
 			logError("sendMediaSegment", "Failed to send playlist data to " + url.toString(), e);
 			retVal = 0;
+			failed = true;
+		}
+		finally
+		{
+			if (conn != null)
+			{
+				releaseConnection(conn, failed);
+			}
+		}
+		return retVal;
+	}
+
+	private String renderPlaylist(PlaylistModel playlist, boolean mediaPlaylist)
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		PlaylistWriter writer = new PlaylistWriter(out, getContextStr());
+		if (!writer.write(playlist))
+			return null;
+
+		String outStr = out.toString();
+		if (catchUp != null)
+			outStr = catchUp.decoratePlaylist(outStr);
+		if (encryptor != null)
+			outStr = encryptor.decoratePlaylist(outStr);
+		if (mediaPlaylist)
+			outStr = persistPlaylist(outStr);
+		return outStr;
+	}
+
+	/*
+	 * Uploads the fragments of a media segment to url, encrypting them with segmentKey if it isn't null. Returns the number of bytes
+	 * sent, or 0 if the server didn't accept them.
+	 */
+	private int putMediaSegment(URL url, PacketFragmentList list, SegmentEncryptor.SegmentKey segmentKey, boolean streaming) throws IOException, GeneralSecurityException
+	{
+		int length = 0;
+		Iterator<IPacketFragment> itr = list.getFragments().iterator();
+		while (itr.hasNext())
+		{
+			IPacketFragment fragment = itr.next();
+			if (fragment.getLen() > 0)
+				length += fragment.getBuffer().length;
+		}
+
+		int size = 0;
+		HttpURLConnection conn = null;
+		boolean failed = true;
+		try
+		{
+			conn = openConnection(url, "PUT");
+			conn.setDoOutput(true);
+			// stream the body (encrypting as we go) instead of letting HttpURLConnection buffer all of it first.
+			if (streaming)
+				conn.setFixedLengthStreamingMode(segmentKey != null ? SegmentEncryptor.getEncryptedLength(length) : length);
+
+			// fragments are small, collect them into fewer, larger writes to the socket.
+			OutputStream out = new BufferedOutputStream(conn.getOutputStream(), UPLOAD_BUFFER_SIZE);
+			if (segmentKey != null)
+				out = encryptor.wrap(out, segmentKey);
+
+			itr = list.getFragments().iterator();
+			while (itr.hasNext())
+			{
+				IPacketFragment fragment = itr.next();
+				if (fragment.getLen() <= 0)
+					continue;
+				byte[] data = fragment.getBuffer();
+
+				out.write(data);
+				size += data.length;
+			}
+			out.close();
+
+			int status = conn.getResponseCode();
+			if (status < 200 || status >= 300)
+				size = 0;
+			failed = false;
+		}
+		finally
+		{
+			if (conn != null)
+			{
+				releaseConnection(conn, failed);
+			}
+		}
+		return size;
+	}
+
+	/*
+	 * Whether e may come from a kept-alive connection the server had already closed, rather than the server being unreachable or
+	 * too slow.
+	 */
+	private static boolean isRetryable(IOException e)
+	{
+		return !(e instanceof ConnectException || e instanceof UnknownHostException || e instanceof SocketTimeoutException || e instanceof SSLHandshakeException);
+	}
+
+	private int putData(String method, String urlStr, byte[] data)
+	{
+		int retVal = 0;
+		URL url = null;
+		HttpURLConnection conn = null;
+		boolean failed = false;
+		try
+		{
+			url = new URL(urlStr);
+			conn = openConnection(url, "PUT");
+			// no streaming mode for small bodies: HttpURLConnection buffers them and can resend them on a new connection if the
+			// kept-alive one was closed by the server.
+			conn.setDoOutput(true);
+			conn.getOutputStream().write(data);
+			retVal = data.length;
+			int status = conn.getResponseCode();
+			if (status < 200 || status >= 300)
+			{
+				retVal = 0;
+				logWarn(method, "Failed to send data to " + urlStr + ", http status: " + status);
+			}
+		}
+		catch (Exception e)
+		{
+			logError(method, "Failed to send data to " + url, e);
+			retVal = 0;
+			failed = true;
 		}
 		finally
 		{
 			if (conn != null)
 			{
-				conn.disconnect();
+				releaseConnection(conn, failed);
 			}
 		}
 		return retVal;
 	}
 
+	private int deleteData(String method, String urlStr)
+	{
+		int retVal = 0;
+		URL url = null;
+		HttpURLConnection conn = null;
+		boolean failed = false;
+		try
+		{
+			url = new URL(urlStr);
+			conn = openConnection(url, "DELETE");
+			int status = conn.getResponseCode();
+			if (status >= 200 && status < 300)
+				retVal = 1;
+			else
+				logWarn(method, "Failed to delete " + urlStr + ", http status: " + status);
+		}
+		catch (Exception e)
+		{
+			logError(method, "Failed to delete " + url, e);
+			failed = true;
+		}
+		finally
+		{
+			if (conn != null)
+			{
+				releaseConnection(conn, failed);
+			}
+		}
+		return retVal;
+	}
+
+	private HttpURLConnection openConnection(URL url, String method) throws IOException
+	{
+		HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+		if (tlsContext != null && conn instanceof HttpsURLConnection)
+			((HttpsURLConnection)conn).setSSLSocketFactory(tlsContext.getSocketFactory());
+		conn.setConnectTimeout(connectionTimeout);
+		conn.setReadTimeout(readTimeout);
+		conn.setRequestMethod(method);
+		return conn;
+	}
+
+	private void releaseConnection(HttpURLConnection conn, boolean failed)
+	{
+		// Reading the response to the end and closing it, rather than calling disconnect(), returns the connection
+		// (and its TLS session) to the keep-alive cache for the next request.
+		if (failed)
+		{
+			conn.disconnect();
+			return;
+		}
+
+		InputStream in = null;
+		try
+		{
+			try
+			{
+				in = conn.getInputStream();
+			}
+			catch (IOException e)
+			{
+				in = conn.getErrorStream();
+			}
+			if (in != null)
+			{
+				byte[] buffer = new byte[1024];
+				while (in.read(buffer) != -1)
+					;
+			}
+		}
+		catch (IOException e)
+		{
+			conn.disconnect();
+		}
+		finally
+		{
+			if (in != null)
+			{
+				try
+				{
+					in.close();
+				}
+				catch (IOException e)
+				{
+					// ignore
+				}
+			}
+		}
+	}
+
+	private void prewarmTLS()
+	{
+		tlsPrewarmPending = true;
+		tlsContext.prewarmAsync(httpHost, port, connectionTimeout, new PushPublishTLSContext.IPrewarmListener()
+		{
+			@Override
+			public void onPrewarm(String host, int port, Exception error)
+			{
+				if (error != null)
+				{
+					// only this callback changes the failure count, one pre-warm at a time.
+					int failures = tlsPrewarmFailures + 1;
+					long retryDelay = TLS_PREWARM_RETRY_DELAY << (failures - 1);
+					tlsPrewarmFailures = failures;
+					tlsPrewarmRetryTime = System.currentTimeMillis() + retryDelay;
+					if (failures >= TLS_PREWARM_ATTEMPTS)
+						logWarn("prewarmTLS", "Failed to pre-warm TLS connection to " + host + ":" + port + ", giving up after " + failures + " attempts: " + error.getMessage());
+					else if (failures == 1 || streamDebug)
+						logWarn("prewarmTLS", "Failed to pre-warm TLS connection to " + host + ":" + port + ", retrying in " + (retryDelay / 1000) + "s: " + error.getMessage());
+				}
+				tlsPrewarmed = error == null;
+				tlsPrewarmPending = false;
+			}
+		});
+	}
+
+	private void openPlaylistState()
+	{
+		closePlaylistState();
+
+		// playlistCrossName is shared by the primary and backup sessions of a redundant entry.
+		String name = (playlistCrossName + (backup ? "-b" : "")).replaceAll("[^A-Za-z0-9._-]", "_");
+		File file = new File(playlistStateDir, name + ".state");
+		try
+		{
+			playlistStateStore = PlaylistStateStore.open(file, PlaylistStateStore.DEFAULT_CAPACITY);
+			PlaylistState restored = playlistStateStore.load(playlistTimeout);
+			if (restored != null && !restored.getSegments().isEmpty())
+			{
+				playlistContinuation = new PlaylistContinuation(restored);
+				logInfo("openPlaylistState", "Restored " + restored.getSegments().size() + " media segments up to sequence " + restored.getLastSequence() + " from " + file);
+			}
+		}
+		catch (IOException e)
+		{
+			logError("openPlaylistState", "Failed to open playlist state " + file, e);
+			playlistStateStore = null;
+		}
+	}
+
+	private void closePlaylistState()
+	{
+		if (playlistStateStore != null)
+			playlistStateStore.release();
+		playlistStateStore = null;
+		playlistContinuation = null;
+	}
+
+	private String persistPlaylist(String playlist)
+	{
+		if (playlistContinuation != null)
+			playlist = playlistContinuation.continuePlaylist(playlist);
+		if (playlistStateStore != null)
+			playlistStateStore.save(PlaylistState.parse(playlist));
+		return playlist;
+	}
+
+	private boolean skipMediaSegment(MediaSegmentModel mediaSegment)
+	{
+		boolean wasSkipping = catchUp.isSkipping();
+		String uri = mediaSegment.getUri().toString();
+		boolean skip = catchUp.skipMediaSegment(uri, (long)(mediaSegment.getDuration() * 1000));
+		if (skip)
+		{
+			if (!wasSkipping)
+				logWarn("sendMediaSegment", "Behind live by " + catchUp.getBehind() + "ms, skipping media segments to catch up");
+			logInfo("sendMediaSegment", "Skipped media segment " + uri + ", total skipped: " + catchUp.getSkipCount());
+		}
+		else if (wasSkipping)
+			logInfo("sendMediaSegment", "Caught up with live, total skipped: " + catchUp.getSkipCount());
+		return skip;
+	}
+
 	private String getDestinationPath()
 	{
 		if (!backup)
@@ -403,6 +898,21 @@ public class PushPublishHTTPCupertinoHTTPHandler extends PushPublishHTTPCupertin
 		return basePath + getDstStreamName() + "-b";
 	}
 
+	private String getUrl(String path)
+	{
+		return (isSendSSL ? "https://" : "http://") + httpHost + getPortStr() + "/" + path;
+	}
+
+	/*
+	 * Where the key keyName (<sessionId>/key_x.key) is uploaded to: "http.encryptionKeyDestination", or next to the media segments.
+	 */
+	private String getKeyUrl(String keyName)
+	{
+		if (encryptionKeyDestination != null)
+			return encryptionKeyDestination + keyName;
+		return getUrl(getDestinationPath() + "/" + keyName);
+	}
+
 	private String getPortStr()
 	{
 		String portStr = "";
@@ -410,4 +920,36 @@ public class PushPublishHTTPCupertinoHTTPHandler extends PushPublishHTTPCupertin
 			portStr = ":" + port;
 		return portStr;
 	}
+
+	private int getMapInt(HashMap<String, String> dataMap, String key, int defaultValue)
+	{
+		String valueStr = PushPublishUtils.removeMapString(dataMap, key);
+		if (valueStr == null)
+			return defaultValue;
+		try
+		{
+			return Integer.parseInt(valueStr.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			logWarn("load", "Invalid value for " + key + ": " + valueStr + ", using: " + defaultValue);
+		}
+		return defaultValue;
+	}
+
+	private double getMapDouble(HashMap<String, String> dataMap, String key, double defaultValue)
+	{
+		String valueStr = PushPublishUtils.removeMapString(dataMap, key);
+		if (valueStr == null)
+			return defaultValue;
+		try
+		{
+			return Double.parseDouble(valueStr.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			logWarn("load", "Invalid value for " + key + ": " + valueStr + ", using: " + defaultValue);
+		}
+		return defaultValue;
+	}
 }
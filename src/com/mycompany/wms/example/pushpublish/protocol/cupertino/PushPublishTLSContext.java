@@ -0,0 +1,269 @@
+/*
+ * This code and all components (c) Copyright 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the BSD 3-Clause License.
+ */
+package com.mycompany.wms.example.pushpublish.protocol.cupertino;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+public class PushPublishTLSContext
+{
+
+	/*
+	 * Process wide TLS context shared by all HTTP handler instances.
+	 *
+	 * Sharing one SSLContext means one client session cache, so every connection after the first one to a destination can resume
+	 * the TLS session (session ticket or session id) instead of doing a full handshake. Sharing one SSLSocketFactory also lets
+	 * HttpURLConnection reuse kept-alive connections across handler instances, as its keep-alive cache is keyed by the factory.
+	 *
+	 * The factory counts completed handshakes and how many of them resumed a cached session.
+	 */
+
+	private static final int SESSION_CACHE_SIZE = 1000;
+	private static final int SESSION_TIMEOUT = 24 * 60 * 60;  // seconds
+	private static final int TICKET_READ_TIMEOUT = 250;  // milliseconds
+
+	private static PushPublishTLSContext instance = null;
+
+	private final SSLContext sslContext;
+	private final SSLSocketFactory socketFactory;
+	private final ExecutorService prewarmExecutor;
+	private final AtomicLong handshakes = new AtomicLong();
+	private final AtomicLong resumed = new AtomicLong();
+
+	private PushPublishTLSContext() throws GeneralSecurityException
+	{
+		this.sslContext = SSLContext.getInstance("TLS");
+		this.sslContext.init(null, null, null);
+
+		SSLSessionContext sessionContext = this.sslContext.getClientSessionContext();
+		sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+		sessionContext.setSessionTimeout(SESSION_TIMEOUT);
+
+		this.socketFactory = new CountingSocketFactory(this.sslContext.getSocketFactory());
+		this.prewarmExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "PushPublishTLSPrewarm");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public static synchronized PushPublishTLSContext getInstance() throws GeneralSecurityException
+	{
+		if (instance == null)
+			instance = new PushPublishTLSContext();
+		return instance;
+	}
+
+	public SSLSocketFactory getSocketFactory()
+	{
+		return socketFactory;
+	}
+
+	public long getHandshakeCount()
+	{
+		return handshakes.get();
+	}
+
+	public long getResumedCount()
+	{
+		return resumed.get();
+	}
+
+	/*
+	 * Whether HttpsURLConnection goes through a proxy to reach host:port ("https.proxyHost" or an application ProxySelector).
+	 * prewarm() connects directly, which may not be possible then, and its session wouldn't be resumed through the proxy anyway.
+	 */
+	public static boolean isProxied(String host, int port)
+	{
+		ProxySelector selector = ProxySelector.getDefault();
+		if (selector == null)
+			return false;
+		try
+		{
+			List<Proxy> proxies = selector.select(new URI("https", null, host, port, "/", null, null));
+			return proxies != null && !proxies.isEmpty() && proxies.get(0).type() != Proxy.Type.DIRECT;
+		}
+		catch (Exception e)
+		{
+			return false;
+		}
+	}
+
+	/*
+	 * Connects to host:port and completes a handshake so the session is in the cache before the first real request.
+	 *
+	 * The session is only resumed by HttpsURLConnection if it was negotiated for the same host name (SNI) and with the same
+	 * endpoint identification algorithm, so set both the way HttpsURLConnection does.
+	 */
+	public void prewarm(String host, int port, int timeout) throws IOException
+	{
+		Socket plain = new Socket();
+		try
+		{
+			plain.connect(new InetSocketAddress(host, port), timeout);
+			plain.setSoTimeout(timeout);
+		}
+		catch (IOException e)
+		{
+			plain.close();
+			throw e;
+		}
+
+		SSLSocket socket = (SSLSocket)socketFactory.createSocket(plain, host, port, true);
+		try
+		{
+			SSLParameters params = socket.getSSLParameters();
+			params.setEndpointIdentificationAlgorithm("HTTPS");
+			socket.setSSLParameters(params);
+			socket.startHandshake();
+
+			// TLS 1.3 session tickets are sent after the handshake and are only processed on a read.
+			if ("TLSv1.3".equals(socket.getSession().getProtocol()))
+			{
+				socket.setSoTimeout(Math.min(timeout, TICKET_READ_TIMEOUT));
+				try
+				{
+					socket.getInputStream().read();
+				}
+				catch (SocketTimeoutException e)
+				{
+					// expected, the server has nothing else to say.
+				}
+			}
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	public void prewarmAsync(final String host, final int port, final int timeout, final IPrewarmListener listener)
+	{
+		prewarmExecutor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					prewarm(host, port, timeout);
+					listener.onPrewarm(host, port, null);
+				}
+				catch (Exception e)
+				{
+					listener.onPrewarm(host, port, e);
+				}
+			}
+		});
+	}
+
+	public interface IPrewarmListener
+	{
+		public void onPrewarm(String host, int port, Exception error);
+	}
+
+	private class CountingSocketFactory extends SSLSocketFactory
+	{
+		private final SSLSocketFactory factory;
+
+		CountingSocketFactory(SSLSocketFactory factory)
+		{
+			this.factory = factory;
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites()
+		{
+			return factory.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites()
+		{
+			return factory.getSupportedCipherSuites();
+		}
+
+		@Override
+		public Socket createSocket() throws IOException
+		{
+			return count(factory.createSocket());
+		}
+
+		@Override
+		public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException
+		{
+			return count(factory.createSocket(s, host, port, autoClose));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException
+		{
+			return count(factory.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException
+		{
+			return count(factory.createSocket(host, port, localHost, localPort));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException
+		{
+			return count(factory.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException
+		{
+			return count(factory.createSocket(address, port, localAddress, localPort));
+		}
+
+		private Socket count(Socket socket)
+		{
+			if (socket instanceof SSLSocket)
+			{
+				// a session created before this socket can only have come from the session cache.
+				final long created = System.currentTimeMillis();
+				((SSLSocket)socket).addHandshakeCompletedListener(new HandshakeCompletedListener()
+				{
+					@Override
+					public void handshakeCompleted(HandshakeCompletedEvent event)
+					{
+						handshakes.incrementAndGet();
+						if (event.getSession().getCreationTime() < created)
+							resumed.incrementAndGet();
+					}
+				});
+			}
+			return socket;
+		}
+	}
+}
@@ -0,0 +1,353 @@
+/*
+ * This code and all components (c) Copyright 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the BSD 3-Clause License.
+ */
+package com.mycompany.wms.example.pushpublish.protocol.cupertino;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.wowza.wms.logging.WMSLoggerFactory;
+
+public class RetentionReaper implements Runnable
+{
+
+	/*
+	 * Background clean up of a file handler <root-dir> ("file.retentionTime").
+	 *
+	 * Every interval, up to scanLimit directory entries are checked, carrying on where the previous run stopped, even part-way
+	 * through a directory. Only <root-dir>/<dstStreamName>/<sessionId>/ directories are looked into, where <dstStreamName> holds at
+	 * least one playlist (.m3u8), so anything else that lives in <root-dir> is left alone:
+	 *  - media segments (.ts, .aac, .mp4, .m4s) and keys (key_x.key) older than retentionTime that no playlist in
+	 *    <root-dir>/<dstStreamName>/ refers to are deleted. This picks up files left behind by sessions that never got to delete them.
+	 *  - <sessionId> directories that are empty and older than retentionTime are deleted.
+	 * Playlists themselves, and anything a playlist refers to, are never touched. If a playlist can't be read completely (no #EXTM3U,
+	 * e.g. another process is rewriting it in place), nothing in its <dstStreamName> is deleted in that run.
+	 *
+	 * The reaper also deletes media segments for the handlers (delete()), so the push thread doesn't wait on the filesystem.
+	 *
+	 * There is one reaper per <root-dir>, shared by all handlers writing there. They all run on one background thread.
+	 */
+
+	public static final long DEFAULT_INTERVAL = 60000;
+	public static final int DEFAULT_SCAN_LIMIT = 1000;
+
+	private static final Pattern URI_ATTRIBUTE = Pattern.compile("URI=\"([^\"]*)\"");
+	private static final Pattern REAPABLE_FILE = Pattern.compile(".*\\.(ts|aac|mp4|m4s)|key_[0-9]+\\.key");
+	private static final Map<String, RetentionReaper> reapers = new HashMap<String, RetentionReaper>();
+	private static ScheduledExecutorService executor = null;
+
+	private final File rootDir;
+	private final int scanLimit;
+	private long retentionTime;
+
+	// scan position: stream directories still to look into, their session directories, and the session directory being checked.
+	private final ArrayDeque<File> pendingStreamDirs = new ArrayDeque<File>();
+	private final ArrayDeque<File> pendingSessionDirs = new ArrayDeque<File>();
+	private File sessionDir = null;
+	private String[] sessionEntries = null;
+	private int sessionIndex = 0;
+
+	// per run, null for a stream directory whose playlists couldn't be read.
+	private final Map<File, Set<String>> references = new HashMap<File, Set<String>>();
+	private long deletedFiles = 0;
+	private long deletedDirs = 0;
+
+	private RetentionReaper(File rootDir, long retentionTime, int scanLimit)
+	{
+		this.rootDir = rootDir;
+		this.retentionTime = retentionTime;
+		this.scanLimit = scanLimit;
+	}
+
+	/*
+	 * Returns the reaper for rootDir, starting it on first use. If handlers ask for different retention times, the longest wins.
+	 */
+	public static synchronized RetentionReaper getInstance(File rootDir, long retentionTime, int scanLimit, long interval)
+	{
+		String key = rootDir.getAbsolutePath();
+		RetentionReaper reaper = reapers.get(key);
+		if (reaper == null)
+		{
+			reaper = new RetentionReaper(rootDir, retentionTime, scanLimit);
+			reapers.put(key, reaper);
+			getExecutor().scheduleWithFixedDelay(reaper, interval, interval, TimeUnit.MILLISECONDS);
+		}
+		else
+			reaper.setRetentionTime(retentionTime);
+		return reaper;
+	}
+
+	public long getRetentionTime()
+	{
+		synchronized (this)
+		{
+			return retentionTime;
+		}
+	}
+
+	/*
+	 * Deletes file in the background.
+	 */
+	public void delete(final File file)
+	{
+		getExecutor().execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (file.exists() && !file.delete())
+					WMSLoggerFactory.getLogger(RetentionReaper.class).warn("RetentionReaper.delete: Failed to delete " + file);
+			}
+		});
+	}
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			scan();
+		}
+		catch (Exception e)
+		{
+			// keep the schedule going.
+			WMSLoggerFactory.getLogger(RetentionReaper.class).error("RetentionReaper.run: Failed to clean up " + rootDir, e);
+		}
+	}
+
+	private synchronized void setRetentionTime(long retentionTime)
+	{
+		this.retentionTime = Math.max(this.retentionTime, retentionTime);
+	}
+
+	private void scan()
+	{
+		long retention = getRetentionTime();
+		long expired = System.currentTimeMillis() - retention;
+		long files = deletedFiles;
+		long dirs = deletedDirs;
+
+		// playlists change all the time, so only trust what we read in this run.
+		references.clear();
+
+		int budget = scanLimit;
+		boolean listedRoot = false;
+		while (budget > 0)
+		{
+			if (sessionDir != null)
+				budget = scanSessionDir(budget, expired);
+			else if (!pendingSessionDirs.isEmpty())
+			{
+				sessionDir = pendingSessionDirs.poll();
+				sessionEntries = sessionDir.list();
+				sessionIndex = 0;
+				if (sessionEntries == null)
+					sessionDir = null;
+			}
+			else if (!pendingStreamDirs.isEmpty())
+				budget -= queueSessionDirs(pendingStreamDirs.poll());
+			else if (!listedRoot)
+			{
+				listedRoot = true;
+				String[] streamDirs = rootDir.list();
+				if (streamDirs == null)
+					break;
+				for (String name : streamDirs)
+					pendingStreamDirs.add(new File(rootDir, name));
+				budget -= streamDirs.length;
+			}
+			else
+				break;  // everything checked, start over next run.
+		}
+
+		if (deletedFiles > files || deletedDirs > dirs)
+			WMSLoggerFactory.getLogger(RetentionReaper.class).info("RetentionReaper.scan: " + rootDir + ": deleted " + (deletedFiles - files) + " files and " + (deletedDirs - dirs) + " directories older than " + retention + "ms");
+	}
+
+	/*
+	 * Checks the entries of sessionDir from sessionIndex on, up to budget of them. Returns what is left of budget.
+	 */
+	private int scanSessionDir(int budget, long expired)
+	{
+		Set<String> referenced = getReferences(sessionDir.getParentFile());
+		while (budget > 0 && sessionIndex < sessionEntries.length)
+		{
+			String name = sessionEntries[sessionIndex++];
+			budget--;
+			if (referenced == null || !REAPABLE_FILE.matcher(name).matches())
+				continue;
+			File entry = new File(sessionDir, name);
+			if (entry.isFile() && entry.lastModified() < expired && !referenced.contains(getPath(entry)) && entry.delete())
+				deletedFiles++;
+		}
+
+		if (sessionIndex >= sessionEntries.length)
+		{
+			String[] remaining = sessionDir.list();
+			if (referenced != null && remaining != null && remaining.length == 0 && sessionDir.lastModified() < expired && sessionDir.delete())
+				deletedDirs++;
+			sessionDir = null;
+			sessionEntries = null;
+		}
+		return budget;
+	}
+
+	/*
+	 * Queues the session directories of streamDir if it holds a playlist. Returns the number of entries listed.
+	 */
+	private int queueSessionDirs(File streamDir)
+	{
+		File[] entries = streamDir.listFiles();
+		if (entries == null)
+			return 1;
+
+		boolean hasPlaylist = false;
+		for (File entry : entries)
+		{
+			if (entry.getName().endsWith(".m3u8") && entry.isFile())
+			{
+				hasPlaylist = true;
+				break;
+			}
+		}
+		if (hasPlaylist)
+		{
+			for (File entry : entries)
+			{
+				if (entry.isDirectory())
+					pendingSessionDirs.add(entry);
+			}
+		}
+		return Math.max(1, entries.length);
+	}
+
+	/*
+	 * Absolute paths of everything the playlists in streamDir refer to: media segments, and keys in #EXT-X-KEY URI attributes.
+	 * Returns null if one of them couldn't be read completely, then nothing in streamDir may be deleted.
+	 */
+	private Set<String> getReferences(File streamDir)
+	{
+		if (references.containsKey(streamDir))
+			return references.get(streamDir);
+
+		Set<String> referenced = new HashSet<String>();
+		File[] playlists = streamDir.listFiles();
+		if (playlists == null)
+			referenced = null;
+		else
+		{
+			for (File playlist : playlists)
+			{
+				if (playlist.isFile() && playlist.getName().endsWith(".m3u8") && !readReferences(playlist, referenced))
+				{
+					referenced = null;
+					break;
+				}
+			}
+		}
+		references.put(streamDir, referenced);
+		return referenced;
+	}
+
+	/*
+	 * Returns false if playlist doesn't start with #EXTM3U (empty, or truncated while it is rewritten in place) or can't be read.
+	 */
+	private boolean readReferences(File playlist, Set<String> referenced)
+	{
+		BufferedReader reader = null;
+		try
+		{
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(playlist), "UTF-8"));
+			String line = reader.readLine();
+			if (line == null || !line.trim().startsWith("#EXTM3U"))
+				return false;
+			while ((line = reader.readLine()) != null)
+			{
+				line = line.trim();
+				if (line.length() == 0)
+					continue;
+				if (!line.startsWith("#"))
+					addReference(playlist, line, referenced);
+				else
+				{
+					Matcher matcher = URI_ATTRIBUTE.matcher(line);
+					while (matcher.find())
+						addReference(playlist, matcher.group(1), referenced);
+				}
+			}
+			return true;
+		}
+		catch (IOException e)
+		{
+			// being rewritten right now, it will be read again next run.
+			return false;
+		}
+		finally
+		{
+			if (reader != null)
+			{
+				try
+				{
+					reader.close();
+				}
+				catch (IOException e)
+				{
+					// ignore
+				}
+			}
+		}
+	}
+
+	private static void addReference(File playlist, String uri, Set<String> referenced)
+	{
+		int schemeEnd = uri.indexOf("://");
+		if (schemeEnd >= 0)
+		{
+			// keys served from "http.encryptionKeyUrl" have their local copy in <sessionId>/key_x.key, unless they are written to
+			// "http.encryptionKeyDestination" instead.
+			String[] parts = uri.substring(schemeEnd + 3).split("\\?")[0].split("/");
+			if (parts.length < 2)
+				return;
+			uri = parts[parts.length - 2] + "/" + parts[parts.length - 1];
+		}
+		referenced.add(getPath(new File(playlist.getParentFile(), uri)));
+	}
+
+	private static String getPath(File file)
+	{
+		return file.getAbsoluteFile().toPath().normalize().toString();
+	}
+
+	private static synchronized ScheduledExecutorService getExecutor()
+	{
+		if (executor == null)
+		{
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "PushPublishRetentionReaper");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * This code and all components (c) Copyright 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the BSD 3-Clause License.
+ */
+package com.mycompany.wms.example.pushpublish.protocol.cupertino;
+
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public class SegmentEncryptor
+{
+
+	/*
+	 * AES-128 (full segment, CBC with PKCS7 padding) encryption of media segments as they are written ("http.encryption":"aes-128").
+	 *
+	 * A new key is generated every keyRotation media segments (0 never rotates). Keys are published next to the media segments,
+	 * <dstStreamName>/<sessionId>/key_x.key, and removed once the last media segment using them has left the playlist.
+	 * Every media segment gets its own random IV, so the rendered media playlist gets an EXT-X-KEY tag in front of every
+	 * media segment rather than relying on the media sequence number, which the base class assigns after we have encrypted.
+	 */
+
+	public static final String METHOD_AES_128 = "aes-128";
+
+	private static final String CIPHER = "AES/CBC/PKCS5Padding";
+	private static final int KEY_LENGTH = 16;
+	private static final int MAX_SEGMENTS = 1000;
+	private static final String TAG_EXTINF = "#EXTINF";
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private static final SecureRandom random = new SecureRandom();
+
+	public static class SegmentKey
+	{
+		final String name;
+		final byte[] key;
+		final byte[] iv;
+		final boolean first;
+
+		SegmentKey(String name, byte[] key, byte[] iv, boolean first)
+		{
+			this.name = name;
+			this.key = key;
+			this.iv = iv;
+			this.first = first;
+		}
+
+		/*
+		 * Path of the key file, relative to the destination directory of the media playlist.
+		 */
+		public String getName()
+		{
+			return name;
+		}
+
+		public byte[] getKey()
+		{
+			return key;
+		}
+
+		/*
+		 * True for the first media segment using this key, the key must be published before the segment.
+		 */
+		public boolean isFirst()
+		{
+			return first;
+		}
+	}
+
+	private final int keyRotation;
+	private final String keyUrl;
+
+	private final LinkedHashMap<String, SegmentKey> segments = new LinkedHashMap<String, SegmentKey>();
+	private final Map<String, Integer> keyRefs = new HashMap<String, Integer>();
+	private String keyName = null;
+	private byte[] key = null;
+	private int keyCount = 0;
+	private int keySegments = 0;
+
+	public SegmentEncryptor(int keyRotation, String keyUrl)
+	{
+		this.keyRotation = keyRotation;
+		this.keyUrl = keyUrl;
+	}
+
+	/*
+	 * Assigns the key and IV for the media segment at uri (<sessionId>/media_x.ts), rotating the key if it is due.
+	 */
+	public synchronized SegmentKey nextMediaSegment(String uri)
+	{
+		String dir = uri.substring(0, uri.lastIndexOf('/') + 1);
+		boolean first = false;
+		if (key == null || !keyName.startsWith(dir) || (keyRotation > 0 && keySegments >= keyRotation))
+		{
+			key = new byte[KEY_LENGTH];
+			random.nextBytes(key);
+			keyName = dir + "key_" + keyCount++ + ".key";
+			keySegments = 0;
+			first = true;
+		}
+		keySegments++;
+
+		byte[] iv = new byte[KEY_LENGTH];
+		random.nextBytes(iv);
+
+		SegmentKey segmentKey = new SegmentKey(keyName, key, iv, first);
+		SegmentKey old = segments.put(uri, segmentKey);
+		if (old != null)
+			release(old.name);
+		Integer refs = keyRefs.get(keyName);
+		keyRefs.put(keyName, refs == null ? 1 : refs + 1);
+
+		if (segments.size() > MAX_SEGMENTS)
+		{
+			Iterator<Map.Entry<String, SegmentKey>> itr = segments.entrySet().iterator();
+			SegmentKey eldest = itr.next().getValue();
+			itr.remove();
+			release(eldest.name);
+		}
+		return segmentKey;
+	}
+
+	/*
+	 * Called when a media segment drops out of the playlist, returns the name of its key if no remaining segment uses it.
+	 */
+	public synchronized String removeMediaSegment(String uri)
+	{
+		SegmentKey segmentKey = segments.remove(uri);
+		if (segmentKey == null)
+			return null;
+		return release(segmentKey.name) ? segmentKey.name : null;
+	}
+
+	/*
+	 * Forgets the current key so the next media segment starts a new one, used when publishing the key failed.
+	 */
+	public synchronized void discardKey()
+	{
+		key = null;
+	}
+
+	public Cipher createCipher(SegmentKey segmentKey) throws GeneralSecurityException
+	{
+		Cipher cipher = Cipher.getInstance(CIPHER);
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(segmentKey.key, "AES"), new IvParameterSpec(segmentKey.iv));
+		return cipher;
+	}
+
+	public OutputStream wrap(OutputStream out, SegmentKey segmentKey) throws GeneralSecurityException
+	{
+		return new CipherOutputStream(out, createCipher(segmentKey));
+	}
+
+	public static int getEncryptedLength(int length)
+	{
+		return (length / KEY_LENGTH + 1) * KEY_LENGTH;
+	}
+
+	/*
+	 * Adds an EXT-X-KEY tag in front of every encrypted media segment of a rendered media playlist.
+	 */
+	public synchronized String decoratePlaylist(String playlist)
+	{
+		if (segments.isEmpty())
+			return playlist;
+
+		String[] lines = playlist.split("\n", -1);
+		StringBuilder out = new StringBuilder(playlist.length() + segments.size() * 96);
+		int segmentStart = -1;
+		for (int i = 0; i < lines.length; i++)
+		{
+			String line = lines[i];
+			String trimmed = line.trim();
+			if (trimmed.startsWith(TAG_EXTINF))
+				segmentStart = out.length();
+			else if (trimmed.length() > 0 && !trimmed.startsWith("#"))
+			{
+				SegmentKey segmentKey = segments.get(trimmed);
+				if (segmentStart >= 0 && segmentKey != null)
+					out.insert(segmentStart, getKeyTag(segmentKey) + "\n");
+				segmentStart = -1;
+			}
+
+			out.append(line);
+			if (i < lines.length - 1)
+				out.append('\n');
+		}
+		return out.toString();
+	}
+
+	private String getKeyTag(SegmentKey segmentKey)
+	{
+		StringBuilder tag = new StringBuilder("#EXT-X-KEY:METHOD=AES-128,URI=\"");
+		if (keyUrl != null)
+			tag.append(keyUrl);
+		tag.append(segmentKey.name).append("\",IV=0x");
+		for (byte b : segmentKey.iv)
+			tag.append(HEX[(b >> 4) & 0x0f]).append(HEX[b & 0x0f]);
+		return tag.toString();
+	}
+
+	private boolean release(String name)
+	{
+		Integer refs = keyRefs.get(name);
+		if (refs == null)
+			return false;
+		if (refs > 1)
+		{
+			keyRefs.put(name, refs - 1);
+			return false;
+		}
+		keyRefs.remove(name);
+		return !name.equals(keyName);  // the current key is still in use for the next segment.
+	}
+}
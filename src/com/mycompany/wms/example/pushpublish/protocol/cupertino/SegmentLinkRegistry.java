@@ -0,0 +1,76 @@
+/*
+ * This code and all components (c) Copyright 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the BSD 3-Clause License.
+ */
+package com.mycompany.wms.example.pushpublish.protocol.cupertino;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+public class SegmentLinkRegistry
+{
+
+	/*
+	 * Media segments written by file handler instances, so the primary and backup sessions of the same stream
+	 * (<dstStreamName>/... and <dstStreamName>-b/...) can share one copy on disk.
+	 *
+	 * Whichever session writes a media segment first registers it, the other one looks it up by stream and file name and, if the
+	 * length and CRC32 match what it was about to write, hard links it instead of writing it again.
+	 */
+
+	private static final int MAX_ENTRIES = 10000;
+
+	private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+	private static class Entry
+	{
+		final File file;
+		final long length;
+		final long crc;
+		final boolean backup;
+
+		Entry(File file, long length, long crc, boolean backup)
+		{
+			this.file = file;
+			this.length = length;
+			this.crc = crc;
+			this.backup = backup;
+		}
+	}
+
+	public static String getKey(File rootDir, String dstStreamName, String fileName)
+	{
+		return rootDir.getAbsolutePath() + "|" + dstStreamName + "|" + fileName;
+	}
+
+	public static synchronized void register(String key, File file, long length, long crc, boolean backup)
+	{
+		entries.remove(key);
+		entries.put(key, new Entry(file, length, crc, backup));
+		if (entries.size() > MAX_ENTRIES)
+		{
+			Iterator<Entry> itr = entries.values().iterator();
+			itr.next();
+			itr.remove();
+		}
+	}
+
+	/*
+	 * Returns the copy written by the other (primary or backup) session if it has the same content, or null.
+	 */
+	public static synchronized File find(String key, long length, long crc, boolean backup)
+	{
+		Entry entry = entries.get(key);
+		if (entry == null || entry.backup == backup || entry.length != length || entry.crc != crc)
+			return null;
+		return entry.file;
+	}
+
+	public static synchronized void remove(String key, File file)
+	{
+		Entry entry = entries.get(key);
+		if (entry != null && entry.file.equals(file))
+			entries.remove(key);
+	}
+}